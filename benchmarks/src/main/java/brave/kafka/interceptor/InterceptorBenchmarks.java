@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Tracing;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import zipkin2.Call;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+import zipkin2.reporter.brave.AsyncZipkinSpanHandler;
+
+/** Fixtures shared by interceptor benchmarks. */
+final class InterceptorBenchmarks {
+  static final String TOPIC = "topic";
+  static final String KEY = "key";
+  static final String VALUE = "value";
+
+  /** Propagation headers present on records before they reach the interceptor. */
+  enum Incoming {
+    NONE, B3_MULTI, B3_SINGLE;
+
+    Header[] headers(boolean sampled) {
+      if (this == NONE) return new Header[0];
+      TraceContext context = TraceContext.newBuilder()
+        .traceIdHigh(0x463ac35c9f6413adL)
+        .traceId(0x48485a3953bb6124L)
+        .spanId(0xa2fb4a1d1a96d312L)
+        .sampled(sampled)
+        .build();
+      Headers headers = new RecordHeaders();
+      KafkaInterceptorPropagation.injector(this == B3_MULTI
+        ? KafkaInterceptorPropagation.Format.B3_MULTI
+        : KafkaInterceptorPropagation.Format.B3_SINGLE).inject(context, headers);
+      return headers.toArray();
+    }
+  }
+
+  /** Where finished spans go. */
+  enum Reporter {
+    /** Spans are recorded but not reported, as with {@code zipkin.sender.type=NONE}. */
+    NONE,
+    /** Spans are encoded and handed to a sender that keeps nothing. */
+    IN_MEMORY
+  }
+
+  static Map<String, Object> configs() {
+    Map<String, Object> configs = new HashMap<>();
+    configs.put("client.id", "client-1");
+    configs.put("group.id", "group-1");
+    return configs;
+  }
+
+  static SpanHandler spanHandler(Reporter reporter) {
+    if (reporter == Reporter.NONE) return SpanHandler.NOOP;
+    return AsyncZipkinSpanHandler.create(new InMemorySender());
+  }
+
+  static Tracing tracing(boolean sampled, SpanHandler spanHandler) {
+    return Tracing.newBuilder()
+      .sampler(sampled ? Sampler.ALWAYS_SAMPLE : Sampler.NEVER_SAMPLE)
+      .addSpanHandler(spanHandler)
+      .build();
+  }
+
+  static void close(SpanHandler spanHandler) {
+    if (spanHandler instanceof AsyncZipkinSpanHandler) {
+      ((AsyncZipkinSpanHandler) spanHandler).close();
+    }
+  }
+
+  /** Sender that discards messages, so that encoding is measured without any I/O. */
+  static final class InMemorySender extends Sender {
+    @Override public Encoding encoding() {
+      return Encoding.JSON;
+    }
+
+    @Override public int messageMaxBytes() {
+      return 500_000;
+    }
+
+    @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+      return encoding().listSizeInBytes(encodedSpans);
+    }
+
+    @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+      return Call.create(null);
+    }
+  }
+
+  InterceptorBenchmarks() {
+  }
+}
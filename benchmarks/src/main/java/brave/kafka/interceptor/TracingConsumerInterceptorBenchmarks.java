@@ -0,0 +1,116 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Tracing;
+import brave.handler.SpanHandler;
+import brave.kafka.interceptor.InterceptorBenchmarks.Incoming;
+import brave.kafka.interceptor.InterceptorBenchmarks.Reporter;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import org.apache.kafka.clients.consumer.ConsumerRecord;
+import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import static brave.kafka.interceptor.InterceptorBenchmarks.KEY;
+import static brave.kafka.interceptor.InterceptorBenchmarks.TOPIC;
+import static brave.kafka.interceptor.InterceptorBenchmarks.VALUE;
+
+/**
+ * Measures {@link TracingConsumerInterceptor#onConsume(ConsumerRecords)}, one poll of {@link
+ * #recordCount} records per operation: divide results by it for the cost per record.
+ */
+@Measurement(iterations = 5, time = 1)
+@Warmup(iterations = 10, time = 1)
+@Fork(3)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@State(Scope.Thread)
+public class TracingConsumerInterceptorBenchmarks {
+  @Param({"1", "500", "5000"}) public int recordCount;
+  @Param({"NONE", "B3_MULTI", "B3_SINGLE"}) public String incoming;
+  @Param({"true", "false"}) public boolean sampled;
+  @Param({"NONE", "IN_MEMORY"}) public String reporter;
+
+  TracingConsumerInterceptor<String, String> interceptor;
+  SpanHandler spanHandler;
+  Header[] incomingHeaders;
+  List<ConsumerRecord<String, String>> recordList;
+  ConsumerRecords<String, String> records;
+
+  @Setup public void setup() {
+    interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(InterceptorBenchmarks.configs());
+    Tracing configured = interceptor.tracing;
+    spanHandler = InterceptorBenchmarks.spanHandler(Reporter.valueOf(reporter));
+    interceptor.tracing = InterceptorBenchmarks.tracing(sampled, spanHandler);
+    TracingRegistry.INSTANCE.release(configured);
+    incomingHeaders = Incoming.valueOf(incoming).headers(sampled);
+    recordList = new ArrayList<>(recordCount);
+    for (int i = 0; i < recordCount; i++) {
+      recordList.add(new ConsumerRecord<>(TOPIC, 0, i, KEY, VALUE));
+    }
+    records = new ConsumerRecords<>(
+      Collections.singletonMap(new TopicPartition(TOPIC, 0), recordList));
+  }
+
+  /** Restores the incoming headers, as the interceptor replaces them on each poll. */
+  @Setup(Level.Invocation) public void resetHeaders() {
+    for (ConsumerRecord<String, String> record : recordList) {
+      Headers headers = record.headers();
+      for (Header header : headers.toArray()) headers.remove(header.key());
+      for (Header header : incomingHeaders) headers.add(header);
+    }
+  }
+
+  @TearDown public void close() {
+    interceptor.close();
+    InterceptorBenchmarks.close(spanHandler);
+  }
+
+  @Benchmark public ConsumerRecords<String, String> onConsume() {
+    return interceptor.onConsume(records);
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .addProfiler("gc")
+      .include(".*" + TracingConsumerInterceptorBenchmarks.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
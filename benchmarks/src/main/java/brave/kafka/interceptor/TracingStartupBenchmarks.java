@@ -0,0 +1,78 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Measures {@link TracingProducerInterceptor#configure(Map)}, as called when a client starts, with
+ * the reporter created eagerly or when the first span ends. No broker nor Zipkin is contacted.
+ */
+@Measurement(iterations = 50)
+@Warmup(iterations = 20)
+@Fork(3)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@State(Scope.Thread)
+public class TracingStartupBenchmarks {
+  @Param({"HTTP", "KAFKA"}) public String sender;
+  @Param({"true", "false"}) public boolean lazy;
+
+  Map<String, Object> configs;
+  TracingProducerInterceptor<String, String> interceptor;
+
+  @Setup(Level.Invocation) public void setup() {
+    configs = InterceptorBenchmarks.configs();
+    configs.put(TracingConfiguration.SENDER_TYPE_CONFIG, sender);
+    configs.put("bootstrap.servers", "localhost:9092");
+    configs.put(TracingConfiguration.REPORTER_LAZY_ENABLED_CONFIG, String.valueOf(lazy));
+    interceptor = new TracingProducerInterceptor<>();
+  }
+
+  @TearDown(Level.Invocation) public void close() {
+    interceptor.close(); // releases the shared tracing, so the next call builds it again
+  }
+
+  @Benchmark public TracingProducerInterceptor<String, String> configure() {
+    interceptor.configure(configs);
+    return interceptor;
+  }
+
+  // Convenience main entry-point
+  public static void main(String[] args) throws RunnerException {
+    Options opt = new OptionsBuilder()
+      .include(".*" + TracingStartupBenchmarks.class.getSimpleName())
+      .build();
+
+    new Runner(opt).run();
+  }
+}
@@ -0,0 +1,222 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Span;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Span handler aggregating producer and consumer spans into rate, errors and duration per topic,
+ * instead of reporting each of them, enabled with {@value
+ * TracingConfiguration#AGGREGATE_ENABLED_CONFIG}.
+ * <p>
+ * Every interval, an {@value #SPAN_NAME} span is reported per topic and span kind, tagged with the
+ * span count, error count and duration percentiles of the interval. Only exemplars are passed to
+ * the delegate: the first span per topic and kind of each interval, and spans with an error. Spans
+ * without a topic, or beyond {@link #MAX_TOPICS} topics, are passed as they are.
+ * <p>
+ * Tracing records spans locally even when not sampled ({@code alwaysSampleLocal}), so aggregates
+ * cover all records: unsampled spans are counted, then dropped. Exemplars are sampled spans only.
+ * <p>
+ * Spans end on client threads, so they are counted in {@link LongAdder}s and in histograms
+ * striped by thread. Intervals are rolled by a {@value #THREAD_NAME} thread, also when no span
+ * ends: it swaps in a new {@link Interval}, and reports the previous one once the spans being
+ * recorded into it are, so client threads never wait.
+ */
+final class AggregatingSpanHandler extends SpanHandler {
+  static final String SPAN_NAME = "aggregate";
+  /** Topics aggregated per span kind, beyond which spans are passed as they are. */
+  static final int MAX_TOPICS = 1_000;
+  static final int STRIPES =
+    Math.min(4, Integer.highestOneBit(Runtime.getRuntime().availableProcessors()));
+
+  static final String THREAD_NAME = "zipkin-aggregate";
+  /** Pause of the rolling thread while client threads finish recording a drained interval. */
+  static final long DRAIN_WAIT_NANOS = 10_000L;
+
+  final SpanHandler delegate;
+  final long intervalMs;
+  final boolean traceId128Bit;
+  final AtomicReference<Interval> interval =
+    new AtomicReference<>(new Interval(System.currentTimeMillis()));
+  final Thread roller;
+
+  AggregatingSpanHandler(SpanHandler delegate, long intervalMs, boolean traceId128Bit) {
+    if (intervalMs < 1L) throw new IllegalArgumentException("intervalMs < 1");
+    this.delegate = delegate;
+    this.intervalMs = intervalMs;
+    this.traceId128Bit = traceId128Bit;
+    roller = new Thread(this::rollEveryInterval, THREAD_NAME);
+    roller.setDaemon(true);
+    roller.start();
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    boolean sampled = Boolean.TRUE.equals(context.sampled());
+    if (cause != Cause.FINISHED) return sampled && delegate.end(context, span, cause);
+    String topic = span.tag(KafkaInterceptorTagKey.KAFKA_TOPIC);
+    if ((span.kind() != Span.Kind.PRODUCER && span.kind() != Span.Kind.CONSUMER)
+      || topic == null) {
+      return sampled && delegate.end(context, span, cause);
+    }
+    Interval current = enter();
+    try {
+      ConcurrentMap<String, TopicStats> topics =
+        span.kind() == Span.Kind.PRODUCER ? current.producers : current.consumers;
+      TopicStats stats = topics.get(topic);
+      if (stats == null) {
+        if (topics.size() >= MAX_TOPICS) return sampled && delegate.end(context, span, cause);
+        stats = topics.computeIfAbsent(topic, TopicStats::new);
+        stats.localServiceName = span.localServiceName();
+      }
+      boolean error = span.error() != null || span.tag("error") != null;
+      stats.record(span, error);
+      if (!sampled) return false; // only recorded to be counted
+      boolean exemplar = error || stats.exemplarSent.compareAndSet(false, true);
+      return exemplar ? delegate.end(context, span, cause) : true;
+    } finally {
+      current.exited.increment();
+    }
+  }
+
+  /** Returns the current interval, counted as recorded into until {@link Interval#exited}. */
+  Interval enter() {
+    while (true) {
+      Interval current = interval.get();
+      current.entered.increment();
+      // when swapped meanwhile, the previous interval may be already reported
+      if (interval.get() == current) return current;
+      current.exited.increment();
+    }
+  }
+
+  void rollEveryInterval() {
+    try {
+      while (!Thread.currentThread().isInterrupted()) {
+        long sleepMs = interval.get().startMs + intervalMs - System.currentTimeMillis();
+        if (sleepMs > 0L) Thread.sleep(sleepMs);
+        flush();
+      }
+    } catch (InterruptedException e) {
+      // closed
+    }
+  }
+
+  /** Reports the current interval, e.g. before closing the delegate. */
+  synchronized void flush() {
+    long nowMs = System.currentTimeMillis();
+    Interval previous = interval.getAndSet(new Interval(nowMs));
+    // client threads only record a few counters, so the drain is short
+    while (previous.exited.sum() != previous.entered.sum()) {
+      LockSupport.parkNanos(DRAIN_WAIT_NANOS);
+    }
+    report(previous.producers, Span.Kind.PRODUCER, previous.startMs, nowMs);
+    report(previous.consumers, Span.Kind.CONSUMER, previous.startMs, nowMs);
+  }
+
+  /** Stops rolling intervals, and reports the last one. */
+  void close() {
+    roller.interrupt();
+    try {
+      roller.join();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+    }
+    flush();
+  }
+
+  void report(ConcurrentMap<String, TopicStats> topics, Span.Kind kind, long startMs,
+    long endMs) {
+    for (TopicStats stats : topics.values()) {
+      if (stats.count.sum() == 0L) continue;
+      ThreadLocalRandom random = ThreadLocalRandom.current();
+      long id = random.nextLong(1L, Long.MAX_VALUE);
+      TraceContext context = TraceContext.newBuilder()
+        .traceIdHigh(traceId128Bit ? random.nextLong() : 0L).traceId(id).spanId(id).sampled(true)
+        .build();
+      MutableSpan span = new MutableSpan(context, null);
+      span.name(SPAN_NAME);
+      span.localServiceName(stats.localServiceName);
+      span.startTimestamp(startMs * 1000L);
+      span.finishTimestamp(endMs * 1000L);
+      stats.tag(span, kind);
+      delegate.end(context, span, Cause.FINISHED);
+    }
+  }
+
+  @Override public String toString() {
+    return "AggregatingSpanHandler{" + delegate + "}";
+  }
+
+  /** Stats of an interval, per span kind and topic. */
+  static final class Interval {
+    final long startMs;
+    final ConcurrentMap<String, TopicStats> producers = new ConcurrentHashMap<>();
+    final ConcurrentMap<String, TopicStats> consumers = new ConcurrentHashMap<>();
+    /** Read as exited first, so that a span entering meanwhile is waited for. */
+    final LongAdder entered = new LongAdder(), exited = new LongAdder();
+
+    Interval(long startMs) {
+      this.startMs = startMs;
+    }
+  }
+
+  static final class TopicStats {
+    final String topic;
+    final LongAdder count = new LongAdder();
+    final LongAdder errors = new LongAdder();
+    /** Durations in microseconds. */
+    final LatencyHistogram[] durations = new LatencyHistogram[STRIPES];
+    final AtomicBoolean exemplarSent = new AtomicBoolean();
+    volatile String localServiceName;
+
+    TopicStats(String topic) {
+      this.topic = topic;
+      for (int i = 0; i < STRIPES; i++) durations[i] = new LatencyHistogram();
+    }
+
+    void record(MutableSpan span, boolean error) {
+      count.increment();
+      if (error) errors.increment();
+      if (span.startTimestamp() == 0L) return;
+      int stripe = (int) Thread.currentThread().getId() & (STRIPES - 1);
+      durations[stripe].record(span.finishTimestamp() - span.startTimestamp());
+    }
+
+    void tag(MutableSpan span, Span.Kind kind) {
+      LatencyHistogram duration = new LatencyHistogram();
+      for (LatencyHistogram stripe : durations) duration.add(stripe);
+      span.tag(KafkaInterceptorTagKey.KAFKA_TOPIC, topic);
+      span.tag(KafkaInterceptorTagKey.KAFKA_AGGREGATE_KIND, kind.name());
+      span.tag(KafkaInterceptorTagKey.KAFKA_AGGREGATE_COUNT, String.valueOf(count.sum()));
+      span.tag(KafkaInterceptorTagKey.KAFKA_AGGREGATE_ERRORS, String.valueOf(errors.sum()));
+      if (duration.count() == 0L) return;
+      span.tag(KafkaInterceptorTagKey.KAFKA_AGGREGATE_DURATION_P50,
+        String.valueOf(duration.valueAtPercentile(50)));
+      span.tag(KafkaInterceptorTagKey.KAFKA_AGGREGATE_DURATION_P99,
+        String.valueOf(duration.valueAtPercentile(99)));
+      span.tag(KafkaInterceptorTagKey.KAFKA_AGGREGATE_DURATION_MAX,
+        String.valueOf(duration.max()));
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Span;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Consumer spans kept open until the offsets of their records are committed, so they measure the
+ * time from poll to commit.
+ * <p>
+ * A span may cover records of several partitions: it is finished once all of them are committed
+ * past its last record. Each partition keeps at most {@code maxPendingSpans} spans: beyond that,
+ * the oldest one is no longer waited for on that partition.
+ * <p>
+ * Polls and commits happen on the consumer thread, so this class is not thread-safe.
+ */
+final class CommitSpans {
+  final int maxPendingSpans;
+  final Map<TopicPartition, ArrayDeque<Pending>> partitions = new HashMap<>();
+
+  CommitSpans(int maxPendingSpans) {
+    if (maxPendingSpans <= 0) {
+      throw new IllegalArgumentException("maxPendingSpans <= 0: " + maxPendingSpans);
+    }
+    this.maxPendingSpans = maxPendingSpans;
+  }
+
+  /** @return a span waiting for commits of the partitions then added to it. */
+  static Open open(Span span) {
+    return new Open(span);
+  }
+
+  /** Waits for records of this partition, up to this offset, to be committed. */
+  void add(TopicPartition partition, long lastOffset, Open open) {
+    ArrayDeque<Pending> pending = partitions.get(partition);
+    if (pending == null) partitions.put(partition, pending = new ArrayDeque<>());
+    open.partitions++;
+    pending.addLast(new Pending(lastOffset, open));
+    if (pending.size() > maxPendingSpans) pending.removeFirst().open.release();
+  }
+
+  /** Finishes spans whose records are all committed. */
+  void committed(Map<TopicPartition, OffsetAndMetadata> offsets) {
+    for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+      ArrayDeque<Pending> pending = partitions.get(entry.getKey());
+      if (pending == null || entry.getValue() == null) continue;
+      long committed = entry.getValue().offset(); // next offset to consume
+      while (!pending.isEmpty() && pending.peekFirst().lastOffset < committed) {
+        pending.removeFirst().open.release();
+      }
+    }
+  }
+
+  /** Stops waiting for commits of this partition, e.g. once revoked. */
+  void evict(TopicPartition partition) {
+    ArrayDeque<Pending> pending = partitions.remove(partition);
+    if (pending == null) return;
+    while (!pending.isEmpty()) pending.removeFirst().open.release();
+  }
+
+  /** Finishes all spans, e.g. when the consumer is closed. */
+  void finishAll() {
+    for (ArrayDeque<Pending> pending : partitions.values()) {
+      while (!pending.isEmpty()) pending.removeFirst().open.release();
+    }
+    partitions.clear();
+  }
+
+  int size(TopicPartition partition) {
+    ArrayDeque<Pending> pending = partitions.get(partition);
+    return pending != null ? pending.size() : 0;
+  }
+
+  static final class Open {
+    final Span span;
+    /** Partitions not committed yet past the records of the span. */
+    int partitions;
+
+    Open(Span span) {
+      this.span = span;
+    }
+
+    void release() {
+      if (--partitions == 0) span.finish();
+    }
+  }
+
+  static final class Pending {
+    final long lastOffset;
+    final Open open;
+
+    Pending(long lastOffset, Open open) {
+      this.lastOffset = lastOffset;
+      this.open = open;
+    }
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Span;
+import brave.propagation.TraceContext;
+
+/**
+ * Records consumed under a single span. Instances are reused across polls, so they are only used
+ * by the consumer thread.
+ */
+final class ConsumerBatch {
+  /** Maximum amount of incoming contexts listed on a batch span. */
+  static final int MAX_LINKS = 16;
+
+  final StringBuilder links = new StringBuilder();
+  /** Null unless latencies are recorded. Cleared once the span is tagged with them. */
+  final LatencyHistogram latencies;
+  final boolean recordSizes;
+  Span span;
+  int linkCount;
+  int recordCount;
+  /** Offsets of the first and last records, when the batch covers a single partition. */
+  long firstOffset = -1L, lastOffset = -1L;
+  /** Serialized sizes of the records, when recorded. */
+  long keyBytes, valueBytes, headerBytes;
+
+  ConsumerBatch(boolean recordLatencies, boolean recordSizes) {
+    this.latencies = recordLatencies ? new LatencyHistogram() : null;
+    this.recordSizes = recordSizes;
+  }
+
+  boolean isStarted() {
+    return span != null;
+  }
+
+  void start(Span span) {
+    this.span = span;
+    links.setLength(0);
+    linkCount = 0;
+    recordCount = 0;
+    firstOffset = lastOffset = -1L;
+    keyBytes = valueBytes = headerBytes = 0L;
+  }
+
+  /** Adds sizes of a record, negative key or value sizes meaning none. */
+  void addSizes(int keySize, int valueSize, int headersSize) {
+    if (keySize > 0) keyBytes += keySize;
+    if (valueSize > 0) valueBytes += valueSize;
+    headerBytes += headersSize;
+  }
+
+  /** Sets the offset range of a batch covering a single partition. */
+  void offsets(long first, long last) {
+    firstOffset = first;
+    lastOffset = last;
+  }
+
+  /** @param latency negative when unknown */
+  void add(long latency) {
+    recordCount++;
+    if (latencies != null) latencies.record(latency);
+  }
+
+  /** Lists an incoming context, unless it is not sampled. */
+  void link(TraceContext upstream) {
+    if (Boolean.FALSE.equals(upstream.sampled()) || linkCount++ >= MAX_LINKS) return;
+    if (links.length() > 0) links.append(',');
+    links.append(upstream.traceIdString()).append('-').append(upstream.spanIdString());
+  }
+
+  void finish() {
+    Span span = detach();
+    if (span != null) span.finish();
+  }
+
+  /** Drops the span, when no record was attached to it. */
+  void abandon() {
+    Span span = this.span;
+    this.span = null;
+    span.abandon();
+  }
+
+  /** @return the span tagged with the batch details but not finished, or null if not sampled. */
+  Span detach() {
+    Span span = this.span;
+    this.span = null;
+    if (span.isNoop()) return null;
+    span.tag(KafkaInterceptorTagKey.KAFKA_RECORD_COUNT, String.valueOf(recordCount));
+    if (firstOffset >= 0L) {
+      span.tag(KafkaInterceptorTagKey.KAFKA_OFFSET_FIRST, String.valueOf(firstOffset));
+      span.tag(KafkaInterceptorTagKey.KAFKA_OFFSET_LAST, String.valueOf(lastOffset));
+    }
+    if (links.length() > 0) span.tag(KafkaInterceptorTagKey.KAFKA_LINKS, links.toString());
+    if (recordSizes) {
+      RecordSizes.tag(span, KafkaInterceptorTagKey.KAFKA_KEY_SIZE, keyBytes);
+      RecordSizes.tag(span, KafkaInterceptorTagKey.KAFKA_VALUE_SIZE, valueBytes);
+      RecordSizes.tag(span, KafkaInterceptorTagKey.KAFKA_HEADERS_SIZE, headerBytes);
+    }
+    if (latencies != null && latencies.count() > 0) {
+      span.tag(KafkaInterceptorTagKey.KAFKA_LATENCY_MIN, String.valueOf(latencies.min()));
+      span.tag(KafkaInterceptorTagKey.KAFKA_LATENCY_MAX, String.valueOf(latencies.max()));
+      span.tag(KafkaInterceptorTagKey.KAFKA_LATENCY_P99,
+        String.valueOf(latencies.valueAtPercentile(99)));
+      latencies.clear();
+    }
+    return span;
+  }
+}
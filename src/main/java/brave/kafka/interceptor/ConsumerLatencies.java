@@ -0,0 +1,70 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Produce-to-consume latencies recorded by a {@link TracingConsumerInterceptor} when {@value
+ * TracingConfiguration#CONSUMER_LATENCY_ENABLED_CONFIG} is enabled, per topic-partition.
+ * <p>
+ * Each interceptor records into its own instance, which is published under the consumer {@code
+ * client.id} for the application to read. When consumers of the JVM share a client id, only the
+ * first one configured is published, until it is closed.
+ * <p>
+ * Latency is the difference between the time of consumption and the record timestamp: with
+ * {@code LogAppendTime} topics, it excludes the time spent producing.
+ */
+public final class ConsumerLatencies {
+  static final ConcurrentMap<String, ConsumerLatencies> CLIENTS = new ConcurrentHashMap<>();
+
+  /**
+   * Returns a live view of the histograms per topic-partition of this consumer, or an empty map if
+   * the client is unknown.
+   */
+  public static Map<TopicPartition, LatencyHistogram> get(String clientId) {
+    ConsumerLatencies latencies = CLIENTS.get(clientId);
+    if (latencies == null) return Collections.emptyMap();
+    return Collections.unmodifiableMap(latencies.partitions);
+  }
+
+  /** Null when the consumer has no client id, so latencies are only recorded. */
+  final String clientId;
+  final ConcurrentMap<TopicPartition, LatencyHistogram> partitions = new ConcurrentHashMap<>();
+
+  ConsumerLatencies(String clientId) {
+    this.clientId = clientId;
+    if (clientId != null) CLIENTS.putIfAbsent(clientId, this);
+  }
+
+  /** Returns the histogram of a partition, created on first use by the consumer thread. */
+  LatencyHistogram partition(TopicPartition partition) {
+    LatencyHistogram histogram = partitions.get(partition);
+    if (histogram == null) partitions.put(partition, histogram = new LatencyHistogram());
+    return histogram;
+  }
+
+  void remove(TopicPartition partition) {
+    partitions.remove(partition);
+  }
+
+  /** Unpublishes these latencies, unless another consumer published its own. */
+  void close() {
+    if (clientId != null) CLIENTS.remove(clientId, this);
+  }
+}
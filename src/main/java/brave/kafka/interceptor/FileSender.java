@@ -0,0 +1,394 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.Call;
+import zipkin2.Callback;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+/**
+ * Sender appending messages to memory-mapped segment files in a directory, for when no collector
+ * is reachable.
+ * <p>
+ * Segments have a fixed size, and at most {@code maxBytes / segmentBytes} of them are kept: when
+ * a new segment is needed beyond that, the oldest one is overwritten, with the spans it holds.
+ * Messages are written by the reporter thread, so Kafka clients never wait for the disk.
+ * <p>
+ * When a sender to forward to is set, a background thread sends messages in order, and recycles
+ * segments once all their messages are sent. Messages failing to be sent are retried after the
+ * forward interval. The position of the next message to forward is kept in {@value
+ * #POSITION_FILE}, so that segments left by a previous process are forwarded from there.
+ * <p>
+ * Segments are recycled rather than deleted, as the space of a deleted file is only freed once it
+ * is unmapped, which the JDK leaves to the garbage collector: the directory keeps up to {@code
+ * maxSegments} files, emptied ones being {@link #spares}.
+ * <p>
+ * A message is a span count followed by each encoded span, prefixed with its length. The count is
+ * written last, after a zero count marking the end of messages, so a message partially written by
+ * a crash is ignored.
+ */
+final class FileSender extends Sender {
+  static final Logger LOGGER = LoggerFactory.getLogger(FileSender.class);
+  static final String SEGMENT_PREFIX = "spans-";
+  static final String SEGMENT_SUFFIX = ".segment";
+  static final String LOCK_FILE = "spans.lock";
+  /** Sequence of the segment being forwarded, then position of its next message. */
+  static final String POSITION_FILE = "spans.position";
+
+  final Encoding encoding;
+  final Path directory;
+  final int segmentBytes;
+  final int maxSegments;
+  /** Null when messages are only kept in files. */
+  final Sender forwardTo;
+  final long forwardIntervalMs;
+  final FileChannel lockChannel;
+  final FileLock lock;
+  /** Oldest first, the last one being written. */
+  final Deque<Segment> segments = new ArrayDeque<>();
+  /** Emptied segments, to write again. */
+  final Deque<Segment> spares = new ArrayDeque<>();
+  /** Mapped {@value #POSITION_FILE}, null when messages are only kept in files. */
+  final MappedByteBuffer positionFile;
+  long nextSequence;
+  final AtomicLong segmentsEvicted = new AtomicLong();
+  final Thread forwarder;
+  volatile boolean closed;
+  /** Position after the message being forwarded, in {@link #segments} first segment. */
+  int forwardingEnd = -1;
+
+  FileSender(Encoding encoding, Path directory, int segmentBytes, long maxBytes, Sender forwardTo,
+    long forwardIntervalMs) throws IOException {
+    if (segmentBytes < 1024) throw new IllegalArgumentException("segmentBytes < 1024");
+    this.encoding = encoding;
+    this.directory = directory;
+    this.segmentBytes = segmentBytes;
+    this.maxSegments = (int) Math.max(2L, maxBytes / segmentBytes);
+    this.forwardTo = forwardTo;
+    this.forwardIntervalMs = forwardIntervalMs;
+    Files.createDirectories(directory);
+    lockChannel = FileChannel.open(directory.resolve(LOCK_FILE), StandardOpenOption.CREATE,
+      StandardOpenOption.WRITE);
+    FileLock lock;
+    try {
+      lock = lockChannel.tryLock();
+    } catch (OverlappingFileLockException e) {
+      lock = null;
+    }
+    if (lock == null) {
+      lockChannel.close();
+      throw new IllegalStateException("Spans directory " + directory + " is already in use");
+    }
+    this.lock = lock;
+    if (forwardTo != null) {
+      try (FileChannel channel = FileChannel.open(directory.resolve(POSITION_FILE),
+        StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        positionFile = channel.map(FileChannel.MapMode.READ_WRITE, 0L, 8 + 4);
+      }
+    } else {
+      positionFile = null;
+    }
+    recover();
+    if (forwardTo != null) {
+      forwarder = new Thread(this::forward, "zipkin-file-forwarder");
+      forwarder.setDaemon(true);
+      forwarder.start();
+    } else {
+      forwarder = null;
+    }
+  }
+
+  @Override public Encoding encoding() {
+    return encoding;
+  }
+
+  /** Messages fit a segment, and are not larger in the forward sender's encoding. */
+  @Override public int messageMaxBytes() {
+    int max = segmentBytes;
+    return forwardTo != null ? Math.min(max, forwardTo.messageMaxBytes()) : max;
+  }
+
+  /** Computed rather than framing a copy of the span, as the default does for every span. */
+  @Override public int messageSizeInBytes(int encodedSizeInBytes) {
+    return 4 + 4 + encodedSizeInBytes;
+  }
+
+  @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+    int size = 4;
+    for (byte[] span : encodedSpans) size += 4 + span.length;
+    return size;
+  }
+
+  @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+    return new WriteCall(encodedSpans);
+  }
+
+  /** Appends a message to the current segment, rolling to a new one when full. */
+  synchronized void write(List<byte[]> encodedSpans) throws IOException {
+    if (closed) throw new IllegalStateException("closed");
+    if (encodedSpans.isEmpty()) return;
+    int size = messageSizeInBytes(encodedSpans);
+    if (size > segmentBytes) {
+      throw new IllegalArgumentException("Message of " + size + " bytes exceeds segment size");
+    }
+    Segment segment = segments.peekLast();
+    if (segment == null || segment.writePosition + size > segment.buffer.capacity()) {
+      segment = roll();
+    }
+    ByteBuffer buffer = segment.buffer.duplicate();
+    int start = segment.writePosition;
+    buffer.position(start + 4);
+    for (byte[] span : encodedSpans) {
+      buffer.putInt(span.length);
+      buffer.put(span);
+    }
+    // ends messages, over those of a recycled segment
+    if (start + size + 4 <= buffer.capacity()) buffer.putInt(start + size, 0);
+    buffer.putInt(start, encodedSpans.size());
+    segment.writePosition = start + size;
+  }
+
+  Segment roll() throws IOException {
+    Segment last = segments.peekLast();
+    if (last != null) last.buffer.force();
+    Segment spare = spares.pollFirst();
+    if (spare == null && segments.size() >= maxSegments) {
+      spare = segments.removeFirst();
+      forwardingEnd = -1;
+      if (segmentsEvicted.getAndIncrement() == 0) {
+        LOGGER.warn("Spans directory {} is full: oldest spans are overwritten", directory);
+      }
+    }
+    long sequence = nextSequence++;
+    Path path = directory.resolve(String.format("%s%020d%s", SEGMENT_PREFIX, sequence,
+      SEGMENT_SUFFIX));
+    Segment segment;
+    if (spare != null) {
+      spare.buffer.putInt(0, 0);
+      Files.move(spare.path, path);
+      segment = new Segment(sequence, path, spare.buffer);
+    } else {
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW,
+        StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+        segment = new Segment(sequence, path, channel.map(FileChannel.MapMode.READ_WRITE, 0L,
+          segmentBytes));
+      }
+    }
+    segments.addLast(segment);
+    return segment;
+  }
+
+  /**
+   * Maps segments left by a previous process, finding where their messages end, and where to
+   * forward from.
+   */
+  void recover() throws IOException {
+    List<Path> paths = new ArrayList<>();
+    try (DirectoryStream<Path> stream =
+           Files.newDirectoryStream(directory, SEGMENT_PREFIX + "*" + SEGMENT_SUFFIX)) {
+      stream.forEach(paths::add);
+    }
+    paths.sort(null); // sequences are zero-padded
+    long forwardSequence = positionFile != null ? positionFile.getLong(0) : 0L;
+    int forwardPosition = positionFile != null ? positionFile.getInt(8) : 0;
+    for (Path path : paths) {
+      String name = path.getFileName().toString();
+      long sequence = Long.parseLong(
+        name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length()));
+      nextSequence = sequence + 1;
+      Segment segment;
+      try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ,
+        StandardOpenOption.WRITE)) {
+        segment = new Segment(sequence, path,
+          channel.map(FileChannel.MapMode.READ_WRITE, 0L, channel.size()));
+      }
+      int position = 0;
+      int next;
+      while ((next = nextMessage(segment.buffer, position)) > position) {
+        position = next;
+        // the last message forwarded ends on a message boundary
+        if (sequence == forwardSequence && position <= forwardPosition) {
+          segment.readPosition = position;
+        }
+      }
+      segment.writePosition = position;
+      if (position > 0 && sequence >= forwardSequence) {
+        segments.addLast(segment);
+      } else if (segment.buffer.capacity() == segmentBytes) { // empty or forwarded
+        spares.addLast(segment);
+      } else { // of another segment size
+        Files.deleteIfExists(path);
+      }
+    }
+    // segments written next must not look forwarded
+    nextSequence = Math.max(nextSequence, forwardSequence + 1);
+  }
+
+  /** @return the position after the message starting here, or -1 if there is none. */
+  static int nextMessage(ByteBuffer buffer, int position) {
+    int limit = buffer.capacity();
+    if (position + 4 > limit) return -1;
+    int count = buffer.getInt(position);
+    if (count <= 0) return -1;
+    position += 4;
+    for (int i = 0; i < count; i++) {
+      if (position + 4 > limit) return -1;
+      int length = buffer.getInt(position);
+      if (length < 0 || position + 4 + length > limit) return -1;
+      position += 4 + length;
+    }
+    return position;
+  }
+
+  /** @return the oldest message not forwarded yet, or null if there is none. */
+  synchronized List<byte[]> nextToForward() {
+    while (true) {
+      Segment segment = segments.peekFirst();
+      if (segment == null) return null;
+      if (segment.readPosition < segment.writePosition) {
+        forwardingEnd = nextMessage(segment.buffer, segment.readPosition);
+        return readMessage(segment.buffer, segment.readPosition);
+      }
+      if (segment == segments.peekLast()) return null;
+      spares.addLast(segments.removeFirst()); // fully forwarded
+    }
+  }
+
+  synchronized void forwarded() {
+    Segment segment = segments.peekFirst();
+    if (segment != null && forwardingEnd > 0) {
+      segment.readPosition = forwardingEnd;
+      if (positionFile != null) {
+        // position first: torn by a crash, the sequence still points to the previous segment
+        positionFile.putInt(8, forwardingEnd);
+        positionFile.putLong(0, segment.sequence);
+      }
+    }
+    forwardingEnd = -1;
+  }
+
+  static List<byte[]> readMessage(ByteBuffer mapped, int position) {
+    ByteBuffer buffer = mapped.duplicate();
+    buffer.position(position);
+    int count = buffer.getInt();
+    List<byte[]> spans = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      byte[] span = new byte[buffer.getInt()];
+      buffer.get(span);
+      spans.add(span);
+    }
+    return spans;
+  }
+
+  void forward() {
+    while (!closed) {
+      List<byte[]> message = nextToForward();
+      if (message != null) {
+        try {
+          forwardTo.sendSpans(message).execute();
+          forwarded();
+          continue;
+        } catch (IOException | RuntimeException e) {
+          LOGGER.debug("Error forwarding spans, retrying in {}ms", forwardIntervalMs, e);
+        }
+      }
+      try {
+        Thread.sleep(forwardIntervalMs);
+      } catch (InterruptedException e) {
+        return; // closed
+      }
+    }
+  }
+
+  @Override public void close() throws IOException {
+    closed = true;
+    if (forwarder != null) {
+      forwarder.interrupt();
+      try {
+        forwarder.join(); // before closing the sender it may be using
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      forwardTo.close();
+    }
+    synchronized (this) {
+      for (Segment segment : segments) segment.buffer.force();
+      if (positionFile != null) positionFile.force();
+    }
+    lock.release();
+    lockChannel.close();
+  }
+
+  @Override public String toString() {
+    return "FileSender{directory=" + directory + ", forwardTo=" + forwardTo + "}";
+  }
+
+  static final class Segment {
+    final long sequence;
+    final Path path;
+    final MappedByteBuffer buffer;
+    int writePosition;
+    int readPosition;
+
+    Segment(long sequence, Path path, MappedByteBuffer buffer) {
+      this.sequence = sequence;
+      this.path = path;
+      this.buffer = buffer;
+    }
+  }
+
+  final class WriteCall extends Call.Base<Void> {
+    final List<byte[]> encodedSpans;
+
+    WriteCall(List<byte[]> encodedSpans) {
+      this.encodedSpans = encodedSpans;
+    }
+
+    @Override protected Void doExecute() throws IOException {
+      write(encodedSpans);
+      return null;
+    }
+
+    @Override protected void doEnqueue(Callback<Void> callback) {
+      try {
+        write(encodedSpans);
+        callback.onSuccess(null);
+      } catch (IOException | RuntimeException e) {
+        callback.onError(e);
+      }
+    }
+
+    @Override public Call<Void> clone() {
+      return new WriteCall(encodedSpans);
+    }
+  }
+}
@@ -0,0 +1,72 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.function.Consumer;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Last time partitions were consumed or committed, to evict state kept for partitions no longer
+ * assigned after a rebalance. Interceptors are not notified of rebalances, so partitions neither
+ * consumed nor committed for longer than {@code idleMs} are considered revoked.
+ * <p>
+ * Eviction is checked on every poll and commit, so partitions are only scanned once the earliest
+ * of them may be idle. Used on the consumer thread only.
+ */
+final class IdlePartitions {
+  final long idleMs;
+  final Map<TopicPartition, long[]> lastActiveMs = new HashMap<>();
+  /** Time after which the least recently active partition is idle. */
+  long nextEvictionMs = Long.MAX_VALUE;
+
+  IdlePartitions(long idleMs) {
+    this.idleMs = idleMs;
+  }
+
+  void active(TopicPartition partition, long now) {
+    long[] lastActive = lastActiveMs.get(partition);
+    if (lastActive == null) lastActiveMs.put(partition, lastActive = new long[1]);
+    lastActive[0] = now;
+    if (nextEvictionMs == Long.MAX_VALUE) nextEvictionMs = now + idleMs;
+  }
+
+  /** Whether a partition of this topic is still active, e.g. once another one was evicted. */
+  boolean hasPartitionOf(String topic) {
+    for (TopicPartition partition : lastActiveMs.keySet()) {
+      if (partition.topic().equals(topic)) return true;
+    }
+    return false;
+  }
+
+  /** Forgets partitions idle for longer than {@link #idleMs}, passing them to the callback. */
+  void evict(long now, Consumer<TopicPartition> evicted) {
+    if (now <= nextEvictionMs) return;
+    long oldestActiveMs = Long.MAX_VALUE;
+    for (Iterator<Map.Entry<TopicPartition, long[]>> i = lastActiveMs.entrySet().iterator();
+      i.hasNext(); ) {
+      Map.Entry<TopicPartition, long[]> entry = i.next();
+      long lastActive = entry.getValue()[0];
+      if (now - lastActive <= idleMs) {
+        oldestActiveMs = Math.min(oldestActiveMs, lastActive);
+        continue;
+      }
+      i.remove();
+      evicted.accept(entry.getKey());
+    }
+    nextEvictionMs = oldestActiveMs == Long.MAX_VALUE ? Long.MAX_VALUE : oldestActiveMs + idleMs;
+  }
+}
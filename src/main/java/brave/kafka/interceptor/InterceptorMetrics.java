@@ -0,0 +1,158 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAccumulator;
+import java.util.concurrent.atomic.LongAdder;
+import org.apache.kafka.common.MetricName;
+import org.apache.kafka.common.metrics.JmxReporter;
+import org.apache.kafka.common.metrics.KafkaMetricsContext;
+import org.apache.kafka.common.metrics.Measurable;
+import org.apache.kafka.common.metrics.MetricConfig;
+import org.apache.kafka.common.metrics.Metrics;
+import org.apache.kafka.common.utils.Time;
+
+/**
+ * Metrics of an interceptor, registered in a Kafka {@link Metrics} registry reported to JMX under
+ * the client's prefix ({@value #PRODUCER_JMX_PREFIX} or {@value #CONSUMER_JMX_PREFIX}), in group
+ * {@value #GROUP} and tagged with the client id, next to the client's own metrics.
+ * <p>
+ * Kafka sensors lock on every record, so values are accumulated in {@link LongAdder}s instead, and
+ * only computed when read. Rates, averages and maximums cover the last complete sample window of
+ * the {@link MetricConfig}: windows roll with time, not reads, so every reader sees the same values.
+ * <p>
+ * MBean names must be unique within the JVM, so when another interceptor already registered
+ * metrics with the same client id, or without one, a sequence number is appended to the client id
+ * tag, e.g. {@code client-1-2}.
+ */
+final class InterceptorMetrics implements AutoCloseable {
+  static final String GROUP = "tracing-interceptor-metrics";
+  static final String PRODUCER_JMX_PREFIX = "kafka.producer";
+  static final String CONSUMER_JMX_PREFIX = "kafka.consumer";
+  static final String UNKNOWN_CLIENT_ID = "unknown";
+
+  /** Client ids tagging registered metrics, per JMX prefix, to keep MBean names unique. */
+  static final Set<String> REGISTERED = ConcurrentHashMap.newKeySet();
+
+  final Metrics metrics;
+  final String registered;
+  final long windowMs;
+  final LongAdder recordsTraced = new LongAdder();
+  final LongAdder spansCreated = new LongAdder();
+  final LongAdder extractFailures = new LongAdder();
+  final LongAdder calls = new LongAdder();
+  final LongAdder timeNanos = new LongAdder();
+  final LongAccumulator maxTimeNanos = new LongAccumulator(Math::max, 0L);
+  /** Totals at the start of the current window, and values of the last complete one. */
+  long windowStartMs, startRecordsTraced, startSpansCreated, startCalls, startTimeNanos;
+  double recordsTracedRate, spansCreatedRate, callRate, averageTimeNanos, windowMaxTimeNanos;
+
+  /**
+   * @param operation name of the measured method, e.g. {@code on-send}
+   * @param reporterCounters null when spans are not reported
+   */
+  InterceptorMetrics(String jmxPrefix, String operation, String clientId,
+    ReporterCounters reporterCounters) {
+    String uniqueClientId = register(jmxPrefix, clientId != null ? clientId : UNKNOWN_CLIENT_ID);
+    registered = jmxPrefix + ':' + uniqueClientId;
+    Map<String, String> tags = Collections.singletonMap("client-id", uniqueClientId);
+    MetricConfig config = new MetricConfig().tags(tags);
+    windowMs = config.timeWindowMs();
+    windowStartMs = Time.SYSTEM.milliseconds();
+    metrics = new Metrics(config, Collections.singletonList(new JmxReporter()), Time.SYSTEM,
+      new KafkaMetricsContext(jmxPrefix));
+    add("records-traced-total", "Records carrying a sampled trace context",
+      (c, now) -> recordsTraced.sum());
+    add("records-traced-rate", "Records carrying a sampled trace context per second",
+      (c, now) -> window(now).recordsTracedRate);
+    add("spans-created-total", "Sampled spans created", (c, now) -> spansCreated.sum());
+    add("spans-created-rate", "Sampled spans created per second",
+      (c, now) -> window(now).spansCreatedRate);
+    add("extract-failures-total", "Records with propagation headers that could not be read",
+      (c, now) -> extractFailures.sum());
+    add(operation + "-rate", "Calls of the interceptor per second",
+      (c, now) -> window(now).callRate);
+    add(operation + "-time-ns-avg", "Average time spent in the interceptor",
+      (c, now) -> window(now).averageTimeNanos);
+    add(operation + "-time-ns-max", "Maximum time spent in the interceptor",
+      (c, now) -> window(now).windowMaxTimeNanos);
+    if (reporterCounters != null) {
+      add("reporter-queued-spans", "Spans waiting to be sent, shared by interceptors",
+        (c, now) -> reporterCounters.queuedSpans());
+      add("reporter-spans-dropped-total", "Spans dropped by the reporter, shared by interceptors",
+        (c, now) -> reporterCounters.spansDropped());
+    }
+  }
+
+  /** Returns the client id itself, or with the first free sequence number appended. */
+  static String register(String jmxPrefix, String clientId) {
+    if (REGISTERED.add(jmxPrefix + ':' + clientId)) return clientId;
+    for (int i = 2; ; i++) {
+      String uniqueClientId = clientId + '-' + i;
+      if (REGISTERED.add(jmxPrefix + ':' + uniqueClientId)) return uniqueClientId;
+    }
+  }
+
+  void traced(int records, int spans) {
+    if (records > 0) recordsTraced.add(records);
+    if (spans > 0) spansCreated.add(spans);
+  }
+
+  /** Records an interceptor call, from a {@link System#nanoTime()} start. */
+  void recordCall(long startNanos) {
+    long time = System.nanoTime() - startNanos;
+    calls.increment();
+    timeNanos.add(time);
+    maxTimeNanos.accumulate(time);
+  }
+
+  /** Rolls the window when elapsed, only on reads as recording must stay lock-free. */
+  synchronized InterceptorMetrics window(long now) {
+    long elapsedMs = now - windowStartMs;
+    if (elapsedMs < windowMs) return this;
+    long recordsTraced = this.recordsTraced.sum();
+    long spansCreated = this.spansCreated.sum();
+    long calls = this.calls.sum();
+    long timeNanos = this.timeNanos.sum();
+    recordsTracedRate = (recordsTraced - startRecordsTraced) * 1000.0 / elapsedMs;
+    spansCreatedRate = (spansCreated - startSpansCreated) * 1000.0 / elapsedMs;
+    callRate = (calls - startCalls) * 1000.0 / elapsedMs;
+    averageTimeNanos =
+      calls > startCalls ? (double) (timeNanos - startTimeNanos) / (calls - startCalls) : 0.0;
+    windowMaxTimeNanos = maxTimeNanos.getThenReset();
+    windowStartMs = now;
+    startRecordsTraced = recordsTraced;
+    startSpansCreated = spansCreated;
+    startCalls = calls;
+    startTimeNanos = timeNanos;
+    return this;
+  }
+
+  MetricName name(String name, String description) {
+    return metrics.metricName(name, GROUP, description);
+  }
+
+  void add(String name, String description, Measurable measurable) {
+    metrics.addMetric(name(name, description), measurable);
+  }
+
+  @Override public void close() {
+    metrics.close();
+    REGISTERED.remove(registered);
+  }
+}
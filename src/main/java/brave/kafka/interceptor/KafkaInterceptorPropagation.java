@@ -13,29 +13,530 @@
  */
 package brave.kafka.interceptor;
 
-import brave.propagation.Propagation.Getter;
-import brave.propagation.Propagation.Setter;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.util.Iterator;
+import java.util.concurrent.atomic.LongAdder;
 import org.apache.kafka.common.header.Header;
 import org.apache.kafka.common.header.Headers;
 
 /**
- * Propagation utilities to inject and extract context from {@link Header}
+ * Propagation utilities to inject and extract context from Kafka headers.
+ * <p>
+ * {@link #EXTRACTOR} and {@link #injector(Format)} implement propagation directly on header bytes:
+ * IDs are parsed into longs and written as hex into pre-sized arrays, without intermediate strings,
+ * and headers are scanned once per record.
+ * <p>
+ * Contexts are written in a single {@link Format}, and read from any of them, so that formats can
+ * be changed one application at a time. The {@link brave.propagation.Propagation} of {@link
+ * brave.Tracing} is not used: neither its custom formats nor its baggage fields are propagated.
  */
 final class KafkaInterceptorPropagation {
   static final Charset UTF_8 = StandardCharsets.UTF_8;
 
-  static final Setter<Headers, String> HEADER_SETTER = (carrier, key, value) -> {
-    carrier.remove(key);
-    carrier.add(key, value.getBytes(UTF_8));
-  };
+  static final String B3 = "b3";
+  static final String TRACE_ID = "X-B3-TraceId";
+  static final String SPAN_ID = "X-B3-SpanId";
+  static final String PARENT_SPAN_ID = "X-B3-ParentSpanId";
+  static final String SAMPLED = "X-B3-Sampled";
+  static final String FLAGS = "X-B3-Flags";
+  static final String TRACEPARENT = "traceparent";
+  static final String B3_BINARY = "b3b";
 
-  static final Getter<Headers, String> HEADER_GETTER = (carrier, key) -> {
-    Header header = carrier.lastHeader(key);
-    if (header == null) return null;
-    return new String(header.value(), UTF_8);
-  };
+  /** Length of the W3C {@value #TRACEPARENT} header: version-traceId-parentId-flags. */
+  static final int TRACEPARENT_LENGTH = 55;
+  /** Length of the {@value #B3_BINARY} header: version, trace ID, span ID and flags. */
+  static final int BINARY_LENGTH = 26;
+  static final byte BINARY_SAMPLED = 1, BINARY_DEBUG = 2, BINARY_SAMPLING_KNOWN = 4;
+
+  static final TraceContext.Extractor<Headers> EXTRACTOR = new HeaderExtractor(null, false);
+  static final TraceContext.Injector<Headers> INJECTOR = new HeaderInjector(Format.B3_MULTI);
+
+  /** @param failures if not null, incremented when propagation headers are malformed */
+  static TraceContext.Extractor<Headers> extractor(LongAdder failures) {
+    return failures == null ? EXTRACTOR : new HeaderExtractor(failures, false);
+  }
+
+  /**
+   * Like {@link #extractor(LongAdder)}, but returns {@link TraceContextOrSamplingFlags#NOT_SAMPLED}
+   * as soon as headers carry a "not sampled" decision, without parsing IDs, for callers leaving
+   * such records untouched.
+   */
+  static TraceContext.Extractor<Headers> sampledExtractor(LongAdder failures) {
+    return new HeaderExtractor(failures, true);
+  }
+
+  static TraceContext.Injector<Headers> injector(Format format) {
+    return format == Format.B3_MULTI ? INJECTOR : new HeaderInjector(format);
+  }
+
+  /** Header formats contexts are written in. */
+  enum Format {
+    /** B3 headers: {@code X-B3-TraceId}, {@code X-B3-SpanId}, etc. */
+    B3_MULTI,
+    /** {@code b3: {traceId}-{spanId}-{sampled}}, without parent ID. */
+    B3_SINGLE,
+    /** W3C trace context {@code traceparent: 00-{traceId}-{spanId}-{flags}}. */
+    W3C,
+    /**
+     * {@code b3b}: 26 bytes, a version byte (0), 16 bytes of trace ID and 8 of span ID (big
+     * endian), and a flags byte: 1 sampled, 2 debug, 4 sampling decision known.
+     */
+    BINARY
+  }
+
+  /**
+   * Reads all formats. When several are present, b3 single has precedence, as in Brave, then
+   * traceparent, binary, and b3 multi.
+   */
+  static final class HeaderExtractor implements TraceContext.Extractor<Headers> {
+    final LongAdder failures;
+    final boolean notSampledWithoutIds;
+
+    HeaderExtractor(LongAdder failures, boolean notSampledWithoutIds) {
+      this.failures = failures;
+      this.notSampledWithoutIds = notSampledWithoutIds;
+    }
+
+    @Override public TraceContextOrSamplingFlags extract(Headers headers) {
+      byte[] b3 = null, traceId = null, spanId = null, parentId = null, sampled = null;
+      byte[] flags = null, traceparent = null, binary = null;
+      for (Header header : headers) { // the last header wins, as with Headers.lastHeader
+        switch (header.key()) {
+          case B3:
+            b3 = header.value();
+            break;
+          case TRACE_ID:
+            traceId = header.value();
+            break;
+          case SPAN_ID:
+            spanId = header.value();
+            break;
+          case PARENT_SPAN_ID:
+            parentId = header.value();
+            break;
+          case SAMPLED:
+            sampled = header.value();
+            break;
+          case FLAGS:
+            flags = header.value();
+            break;
+          case TRACEPARENT:
+            traceparent = header.value();
+            break;
+          case B3_BINARY:
+            binary = header.value();
+            break;
+          default:
+        }
+      }
+      if (notSampledWithoutIds && isNotSampled(b3, traceparent, binary, sampled, flags)) {
+        return TraceContextOrSamplingFlags.NOT_SAMPLED;
+      }
+      TraceContextOrSamplingFlags extracted = null;
+      if (b3 != null) extracted = parseB3SingleFormat(b3);
+      if (extracted == null && traceparent != null) extracted = parseTraceparent(traceparent);
+      if (extracted == null && binary != null) extracted = parseBinary(binary);
+      if (extracted == null) {
+        extracted = parseB3MultiFormat(traceId, spanId, parentId, sampled, flags);
+      }
+      if (failures != null && TraceContextOrSamplingFlags.EMPTY.equals(extracted)
+        && (b3 != null || traceparent != null || binary != null || traceId != null
+        || spanId != null || parentId != null || sampled != null || flags != null)) {
+        failures.increment();
+      }
+      return extracted;
+    }
+
+    @Override public String toString() {
+      return "HeaderExtractor{notSampledWithoutIds=" + notSampledWithoutIds + "}";
+    }
+  }
+
+  /** Writes a single format, replacing any propagation header present. */
+  static final class HeaderInjector implements TraceContext.Injector<Headers> {
+    final Format format;
+
+    HeaderInjector(Format format) {
+      this.format = format;
+    }
+
+    @Override public void inject(TraceContext context, Headers headers) {
+      removePropagationHeaders(headers);
+      switch (format) {
+        case B3_MULTI:
+          injectB3Multi(context, headers);
+          break;
+        case B3_SINGLE:
+          headers.add(B3, b3SingleBytes(context));
+          break;
+        case W3C:
+          headers.add(TRACEPARENT, traceparentBytes(context));
+          break;
+        case BINARY:
+          headers.add(B3_BINARY, binaryBytes(context));
+          break;
+        default:
+          throw new AssertionError(format);
+      }
+    }
+
+    @Override public String toString() {
+      return "HeaderInjector{format=" + format + "}";
+    }
+  }
+
+  static void injectB3Multi(TraceContext context, Headers headers) {
+    headers.add(TRACE_ID, traceIdBytes(context));
+    headers.add(SPAN_ID, writeHex(context.spanId(), new byte[16], 0));
+    if (context.parentIdAsLong() != 0L) {
+      headers.add(PARENT_SPAN_ID, writeHex(context.parentIdAsLong(), new byte[16], 0));
+    }
+    if (context.debug()) {
+      headers.add(FLAGS, new byte[] {'1'});
+    } else if (context.sampled() != null) {
+      headers.add(SAMPLED, new byte[] {context.sampled() ? (byte) '1' : (byte) '0'});
+    }
+  }
+
+  /** {traceId}-{spanId}[-{sampled}]: the parent ID is not needed to continue a trace. */
+  static byte[] b3SingleBytes(TraceContext context) {
+    int traceIdLength = context.traceIdHigh() == 0L ? 16 : 32;
+    boolean hasFlag = context.debug() || context.sampled() != null;
+    byte[] b3 = new byte[traceIdLength + 17 + (hasFlag ? 2 : 0)];
+    int index = 0;
+    if (traceIdLength == 32) {
+      writeHex(context.traceIdHigh(), b3, 0);
+      index = 16;
+    }
+    writeHex(context.traceId(), b3, index);
+    index += 16;
+    b3[index++] = '-';
+    writeHex(context.spanId(), b3, index);
+    index += 16;
+    if (hasFlag) {
+      b3[index++] = '-';
+      b3[index] = context.debug() ? (byte) 'd' : context.sampled() ? (byte) '1' : (byte) '0';
+    }
+    return b3;
+  }
+
+  /** 00-{traceId}-{spanId}-{flags}, with 64-bit trace IDs left-padded with zeros. */
+  static byte[] traceparentBytes(TraceContext context) {
+    byte[] traceparent = new byte[TRACEPARENT_LENGTH];
+    traceparent[0] = '0';
+    traceparent[1] = '0';
+    traceparent[2] = '-';
+    writeHex(context.traceIdHigh(), traceparent, 3);
+    writeHex(context.traceId(), traceparent, 19);
+    traceparent[35] = '-';
+    writeHex(context.spanId(), traceparent, 36);
+    traceparent[52] = '-';
+    traceparent[53] = '0';
+    traceparent[54] = Boolean.TRUE.equals(context.sampled()) ? (byte) '1' : (byte) '0';
+    return traceparent;
+  }
+
+  static byte[] binaryBytes(TraceContext context) {
+    byte[] binary = new byte[BINARY_LENGTH];
+    writeLong(context.traceIdHigh(), binary, 1);
+    writeLong(context.traceId(), binary, 9);
+    writeLong(context.spanId(), binary, 17);
+    byte flags = 0;
+    if (context.debug()) {
+      flags = BINARY_SAMPLING_KNOWN | BINARY_SAMPLED | BINARY_DEBUG;
+    } else if (context.sampled() != null) {
+      flags = context.sampled() ? BINARY_SAMPLING_KNOWN | BINARY_SAMPLED : BINARY_SAMPLING_KNOWN;
+    }
+    binary[25] = flags;
+    return binary;
+  }
+
+  /**
+   * Returns true when the header values carry a "not sampled" decision, reading it in place. The b3
+   * single header has precedence; false is returned whenever the decision is unknown or the
+   * headers are malformed, so that they are fully parsed.
+   */
+  static boolean isNotSampled(byte[] b3, byte[] traceparent, byte[] binary, byte[] sampled,
+    byte[] flags) {
+    if (b3 != null) {
+      int length = b3.length;
+      if (length == 1) return b3[0] == '0';
+      // {traceId}-{spanId}-0[-{parentSpanId}]
+      int traceIdLength = length >= 33 && b3[32] == '-' ? 32 : 16;
+      int flagsIndex = traceIdLength + 18;
+      return length > flagsIndex && b3[flagsIndex - 1] == '-' && b3[flagsIndex] == '0'
+        && (length == flagsIndex + 1 || b3[flagsIndex + 1] == '-');
+    }
+    if (traceparent != null && traceparent.length == TRACEPARENT_LENGTH) {
+      return (hexDigit(traceparent[54]) & 1) == 0; // -1 when malformed
+    }
+    if (binary != null && binary.length == BINARY_LENGTH) {
+      return (binary[25] & (BINARY_SAMPLING_KNOWN | BINARY_SAMPLED)) == BINARY_SAMPLING_KNOWN;
+    }
+    if (flags != null && flags.length == 1 && flags[0] == '1') return false; // debug
+    if (sampled == null) return false;
+    if (sampled.length == 1) return sampled[0] == '0';
+    return sampled.length == 5 && (sampled[0] | 0x20) == 'f' && (sampled[1] | 0x20) == 'a'
+      && (sampled[2] | 0x20) == 'l' && (sampled[3] | 0x20) == 's' && (sampled[4] | 0x20) == 'e';
+  }
+
+  /** Removes propagation headers in a single pass, instead of a scan per key. */
+  static void removePropagationHeaders(Headers headers) {
+    for (Iterator<Header> iterator = headers.iterator(); iterator.hasNext(); ) {
+      if (isPropagationKey(iterator.next().key())) iterator.remove();
+    }
+  }
+
+  static boolean isPropagationKey(String key) {
+    switch (key) {
+      case B3:
+      case TRACE_ID:
+      case SPAN_ID:
+      case PARENT_SPAN_ID:
+      case SAMPLED:
+      case FLAGS:
+      case TRACEPARENT:
+      case B3_BINARY:
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  /** Returns null when the value is malformed, so that multi headers can be tried. */
+  static TraceContextOrSamplingFlags parseB3SingleFormat(byte[] b3) {
+    int length = b3.length;
+    if (length == 1) return samplingFlags(b3[0]);
+    // {traceId}-{spanId}[-{sampled}[-{parentSpanId}]]
+    int traceIdLength;
+    if (length >= 33 && b3[32] == '-') {
+      traceIdLength = 32;
+    } else if (length >= 17 && b3[16] == '-') {
+      traceIdLength = 16;
+    } else {
+      return null;
+    }
+    int spanIdEnd = traceIdLength + 17;
+    if (length < spanIdEnd || (length > spanIdEnd && b3[spanIdEnd] != '-')) return null;
+    TraceContext.Builder builder = TraceContext.newBuilder();
+    if (!parseTraceId(builder, b3, 0, traceIdLength)) return null;
+    long spanId = parseHex(b3, traceIdLength + 1, spanIdEnd);
+    if (spanId == 0L) return null;
+    builder.spanId(spanId);
+    if (length > spanIdEnd) {
+      int flagsIndex = spanIdEnd + 1;
+      if (length == flagsIndex + 1) { // sampled without parent
+        if (!setSamplingFlags(builder, b3[flagsIndex])) return null;
+      } else if (length == flagsIndex + 16) { // parent without sampled
+        long parentId = parseHex(b3, flagsIndex, length);
+        if (parentId == 0L) return null;
+        builder.parentId(parentId);
+      } else if (length == flagsIndex + 18 && b3[flagsIndex + 1] == '-') {
+        if (!setSamplingFlags(builder, b3[flagsIndex])) return null;
+        long parentId = parseHex(b3, flagsIndex + 2, length);
+        if (parentId == 0L) return null;
+        builder.parentId(parentId);
+      } else {
+        return null;
+      }
+    }
+    return TraceContextOrSamplingFlags.create(builder.build());
+  }
+
+  /** Returns null when the value is malformed, so that other formats can be tried. */
+  static TraceContextOrSamplingFlags parseTraceparent(byte[] traceparent) {
+    if (traceparent.length != TRACEPARENT_LENGTH || traceparent[2] != '-'
+      || traceparent[35] != '-' || traceparent[52] != '-') {
+      return null;
+    }
+    int version = hexDigit(traceparent[0]) << 4 | hexDigit(traceparent[1]);
+    if (version < 0 || version == 0xff) return null;
+    int flags = hexDigit(traceparent[53]) << 4 | hexDigit(traceparent[54]);
+    if (flags < 0) return null;
+    TraceContext.Builder builder = TraceContext.newBuilder();
+    if (!parseTraceId(builder, traceparent, 3, 35)) return null;
+    long spanId = parseHex(traceparent, 36, 52);
+    if (spanId == 0L) return null;
+    return TraceContextOrSamplingFlags.create(
+      builder.spanId(spanId).sampled((flags & 1) == 1).build());
+  }
+
+  /** Returns null when the value is malformed, so that other formats can be tried. */
+  static TraceContextOrSamplingFlags parseBinary(byte[] binary) {
+    if (binary.length != BINARY_LENGTH || binary[0] != 0) return null;
+    long traceId = readLong(binary, 9);
+    long spanId = readLong(binary, 17);
+    if (traceId == 0L || spanId == 0L) return null;
+    TraceContext.Builder builder = TraceContext.newBuilder()
+      .traceIdHigh(readLong(binary, 1)).traceId(traceId).spanId(spanId);
+    byte flags = binary[25];
+    if ((flags & BINARY_DEBUG) != 0) {
+      builder.debug(true);
+    } else if ((flags & BINARY_SAMPLING_KNOWN) != 0) {
+      builder.sampled((flags & BINARY_SAMPLED) != 0);
+    }
+    return TraceContextOrSamplingFlags.create(builder.build());
+  }
+
+  static TraceContextOrSamplingFlags parseB3MultiFormat(byte[] traceId, byte[] spanId,
+    byte[] parentId, byte[] sampled, byte[] flags) {
+    Boolean sampledValue = sampled != null ? parseSampled(sampled) : null;
+    boolean debug = flags != null && flags.length == 1 && flags[0] == '1';
+    if (traceId == null) {
+      if (debug) return TraceContextOrSamplingFlags.DEBUG;
+      if (sampledValue == null) return TraceContextOrSamplingFlags.EMPTY;
+      return sampledValue ? TraceContextOrSamplingFlags.SAMPLED
+        : TraceContextOrSamplingFlags.NOT_SAMPLED;
+    }
+    TraceContext.Builder builder = TraceContext.newBuilder();
+    if (!parseTraceId(builder, traceId, 0, traceId.length)) {
+      return TraceContextOrSamplingFlags.EMPTY;
+    }
+    long spanIdValue = parseSpanId(spanId);
+    if (spanIdValue == 0L) return TraceContextOrSamplingFlags.EMPTY;
+    builder.spanId(spanIdValue);
+    if (parentId != null) {
+      long parentIdValue = parseSpanId(parentId);
+      if (parentIdValue == 0L) return TraceContextOrSamplingFlags.EMPTY;
+      builder.parentId(parentIdValue);
+    }
+    if (debug) {
+      builder.debug(true);
+    } else if (sampledValue != null) {
+      builder.sampled(sampledValue.booleanValue());
+    }
+    return TraceContextOrSamplingFlags.create(builder.build());
+  }
+
+  /**
+   * Parses the 2-32 lower-hex characters Brave accepts as a trace ID, left-padding shorter ones.
+   * Characters before the last 16 are the high bits of a 128-bit trace ID.
+   */
+  static boolean parseTraceId(TraceContext.Builder builder, byte[] bytes, int from, int to) {
+    int length = to - from;
+    if (length < 2 || length > 32) return false;
+    int lowFrom = Math.max(from, to - 16);
+    if (lowFrom > from) {
+      if (!isLowerHex(bytes, from, lowFrom)) return false;
+      builder.traceIdHigh(parseHex(bytes, from, lowFrom));
+    }
+    long traceId = parseHex(bytes, lowFrom, to);
+    if (traceId == 0L) return false;
+    builder.traceId(traceId);
+    return true;
+  }
+
+  /** Parses the 2-16 lower-hex characters Brave accepts as a span ID, or returns zero. */
+  static long parseSpanId(byte[] bytes) {
+    if (bytes == null || bytes.length < 2 || bytes.length > 16) return 0L;
+    return parseHex(bytes, 0, bytes.length);
+  }
+
+  /** Follows the X-B3-Sampled header: "1" or "true" are sampled, "0" or "false" are not. */
+  static Boolean parseSampled(byte[] sampled) {
+    if (sampled.length == 1) {
+      if (sampled[0] == '1') return Boolean.TRUE;
+      if (sampled[0] == '0') return Boolean.FALSE;
+      return null;
+    }
+    String value = new String(sampled, UTF_8); // uncommon, so not worth avoiding the allocation
+    if (value.equalsIgnoreCase("true")) return Boolean.TRUE;
+    if (value.equalsIgnoreCase("false")) return Boolean.FALSE;
+    return null;
+  }
+
+  static TraceContextOrSamplingFlags samplingFlags(byte flag) {
+    switch (flag) {
+      case '1':
+        return TraceContextOrSamplingFlags.SAMPLED;
+      case '0':
+        return TraceContextOrSamplingFlags.NOT_SAMPLED;
+      case 'd':
+        return TraceContextOrSamplingFlags.DEBUG;
+      default:
+        return null;
+    }
+  }
+
+  static boolean setSamplingFlags(TraceContext.Builder builder, byte flag) {
+    switch (flag) {
+      case '1':
+        builder.sampled(true);
+        return true;
+      case '0':
+        builder.sampled(false);
+        return true;
+      case 'd':
+        builder.debug(true);
+        return true;
+      default:
+        return false;
+    }
+  }
+
+  static byte[] traceIdBytes(TraceContext context) {
+    if (context.traceIdHigh() == 0L) return writeHex(context.traceId(), new byte[16], 0);
+    byte[] traceId = new byte[32];
+    writeHex(context.traceIdHigh(), traceId, 0);
+    return writeHex(context.traceId(), traceId, 16);
+  }
+
+  /**
+   * Parses up to 16 lower-hex characters. Returns zero on any other character, which is fine as
+   * zero is not a valid ID.
+   */
+  static long parseHex(byte[] bytes, int from, int to) {
+    long result = 0L;
+    for (int i = from; i < to; i++) {
+      int digit = hexDigit(bytes[i]);
+      if (digit == -1) return 0L;
+      result = (result << 4) | digit;
+    }
+    return result;
+  }
+
+  static boolean isLowerHex(byte[] bytes, int from, int to) {
+    for (int i = from; i < to; i++) {
+      if (hexDigit(bytes[i]) == -1) return false;
+    }
+    return true;
+  }
+
+  static int hexDigit(byte b) {
+    if (b >= '0' && b <= '9') return b - '0';
+    if (b >= 'a' && b <= 'f') return b - 'a' + 10;
+    return -1;
+  }
+
+  static final byte[] HEX_DIGITS =
+    {'0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f'};
+
+  /** Writes 16 lower-hex characters of the value into the destination, at the given offset. */
+  static byte[] writeHex(long value, byte[] destination, int offset) {
+    for (int i = offset + 15; i >= offset; i--) {
+      destination[i] = HEX_DIGITS[(int) (value & 0xf)];
+      value >>>= 4;
+    }
+    return destination;
+  }
+
+  static void writeLong(long value, byte[] destination, int offset) {
+    for (int i = offset + 7; i >= offset; i--) {
+      destination[i] = (byte) value;
+      value >>>= 8;
+    }
+  }
+
+  static long readLong(byte[] bytes, int offset) {
+    long result = 0L;
+    for (int i = offset; i < offset + 8; i++) {
+      result = (result << 8) | (bytes[i] & 0xff);
+    }
+    return result;
+  }
 
   KafkaInterceptorPropagation() {
   }
@@ -20,6 +20,28 @@ package brave.kafka.interceptor;
 class KafkaInterceptorTagKey {
   static final String KAFKA_TOPIC = "kafka.topic";
   static final String KAFKA_KEY = "kafka.key";
+  static final String KAFKA_KEY_HASH = "kafka.key.hash";
   static final String KAFKA_CLIENT_ID = "kafka.client.id";
   static final String KAFKA_GROUP_ID = "kafka.group.id";
+  static final String KAFKA_PARTITION = "kafka.partition";
+  static final String KAFKA_OFFSET = "kafka.offset";
+  static final String KAFKA_OFFSET_FIRST = "kafka.offset.first";
+  static final String KAFKA_OFFSET_LAST = "kafka.offset.last";
+  static final String KAFKA_KEY_SIZE = "kafka.key.size";
+  static final String KAFKA_VALUE_SIZE = "kafka.value.size";
+  static final String KAFKA_HEADERS_SIZE = "kafka.headers.size";
+  static final String KAFKA_COMMIT_PARTITIONS = "kafka.commit.partitions";
+  static final String KAFKA_COMMIT_OFFSETS = "kafka.commit.offsets";
+  static final String KAFKA_RECORD_COUNT = "kafka.record.count";
+  static final String KAFKA_LINKS = "kafka.links";
+  static final String KAFKA_AGGREGATE_KIND = "kafka.aggregate.kind";
+  static final String KAFKA_AGGREGATE_COUNT = "kafka.aggregate.count";
+  static final String KAFKA_AGGREGATE_ERRORS = "kafka.aggregate.errors";
+  static final String KAFKA_AGGREGATE_DURATION_P50 = "kafka.aggregate.duration.p50.us";
+  static final String KAFKA_AGGREGATE_DURATION_P99 = "kafka.aggregate.duration.p99.us";
+  static final String KAFKA_AGGREGATE_DURATION_MAX = "kafka.aggregate.duration.max.us";
+  static final String KAFKA_LATENCY = "kafka.latency.ms";
+  static final String KAFKA_LATENCY_MIN = "kafka.latency.min.ms";
+  static final String KAFKA_LATENCY_MAX = "kafka.latency.max.ms";
+  static final String KAFKA_LATENCY_P99 = "kafka.latency.p99.ms";
 }
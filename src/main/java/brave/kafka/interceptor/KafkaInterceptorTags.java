@@ -0,0 +1,61 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.SpanCustomizer;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Immutable set of tags with values known at configuration time, like client and group ids, added
+ * to every span created by an interceptor.
+ */
+final class KafkaInterceptorTags {
+  static Builder newBuilder() {
+    return new Builder();
+  }
+
+  final String[] keys;
+  final String[] values;
+
+  KafkaInterceptorTags(Builder builder) {
+    this.keys = builder.tags.keySet().toArray(new String[0]);
+    this.values = builder.tags.values().toArray(new String[0]);
+  }
+
+  void tag(SpanCustomizer span) {
+    for (int i = 0; i < keys.length; i++) {
+      span.tag(keys[i], values[i]);
+    }
+  }
+
+  static final class Builder {
+    final Map<String, String> tags = new LinkedHashMap<>();
+
+    /** Values not present in the configuration are ignored. */
+    Builder add(String key, String value) {
+      if (value != null) tags.put(key, value);
+      return this;
+    }
+
+    Builder addAll(Map<String, String> tags) {
+      tags.forEach(this::add);
+      return this;
+    }
+
+    KafkaInterceptorTags build() {
+      return new KafkaInterceptorTags(this);
+    }
+  }
+}
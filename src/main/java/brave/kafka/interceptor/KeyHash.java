@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.nio.ByteBuffer;
+import org.apache.kafka.common.utils.Bytes;
+
+/**
+ * 64-bit FNV-1a hash of record keys, computed on the bytes written by the matching Kafka
+ * serializer, so that producers and consumers get the same hash whatever their key types: UTF-8
+ * for strings, big-endian for numbers. Keys are hashed in place, without copies.
+ */
+final class KeyHash {
+  static final long OFFSET_BASIS = 0xcbf29ce484222325L;
+  static final long PRIME = 0x100000001b3L;
+
+  /** @return whether {@link #hash(Object)} supports this key. */
+  static boolean isSupported(Object key) {
+    return key instanceof byte[] || key instanceof String || key instanceof ByteBuffer
+      || key instanceof Bytes || key instanceof Long || key instanceof Integer
+      || key instanceof Short || key instanceof Double || key instanceof Float;
+  }
+
+  /** @throws IllegalArgumentException if the key is not {@link #isSupported(Object) supported} */
+  static long hash(Object key) {
+    if (key instanceof byte[]) return hash((byte[]) key);
+    if (key instanceof String) return hash((String) key);
+    if (key instanceof ByteBuffer) return hash((ByteBuffer) key);
+    if (key instanceof Bytes) return hash(((Bytes) key).get());
+    if (key instanceof Long) return hashBigEndian((Long) key, 8);
+    if (key instanceof Integer) return hashBigEndian((Integer) key, 4);
+    if (key instanceof Short) return hashBigEndian((Short) key, 2);
+    if (key instanceof Double) return hashBigEndian(Double.doubleToLongBits((Double) key), 8);
+    if (key instanceof Float) return hashBigEndian(Float.floatToRawIntBits((Float) key), 4);
+    throw new IllegalArgumentException("Unsupported key type " + key.getClass().getName());
+  }
+
+  static long hash(byte[] bytes) {
+    long hash = OFFSET_BASIS;
+    for (byte b : bytes) hash = (hash ^ (b & 0xff)) * PRIME;
+    return hash;
+  }
+
+  /** Hashes remaining bytes, leaving the buffer position unchanged. */
+  static long hash(ByteBuffer buffer) {
+    long hash = OFFSET_BASIS;
+    for (int i = buffer.position(), limit = buffer.limit(); i < limit; i++) {
+      hash = (hash ^ (buffer.get(i) & 0xff)) * PRIME;
+    }
+    return hash;
+  }
+
+  /** Hashes the UTF-8 encoding of a string, as {@code StringSerializer} writes it. */
+  static long hash(String string) {
+    long hash = OFFSET_BASIS;
+    for (int i = 0, length = string.length(); i < length; i++) {
+      int c = string.charAt(i);
+      if (c < 0x80) {
+        hash = (hash ^ c) * PRIME;
+      } else if (c < 0x800) {
+        hash = (hash ^ (0xc0 | (c >> 6))) * PRIME;
+        hash = (hash ^ (0x80 | (c & 0x3f))) * PRIME;
+      } else if (Character.isHighSurrogate((char) c) && i + 1 < length
+        && Character.isLowSurrogate(string.charAt(i + 1))) {
+        int codePoint = Character.toCodePoint((char) c, string.charAt(++i));
+        hash = (hash ^ (0xf0 | (codePoint >> 18))) * PRIME;
+        hash = (hash ^ (0x80 | ((codePoint >> 12) & 0x3f))) * PRIME;
+        hash = (hash ^ (0x80 | ((codePoint >> 6) & 0x3f))) * PRIME;
+        hash = (hash ^ (0x80 | (codePoint & 0x3f))) * PRIME;
+      } else if (Character.isSurrogate((char) c)) { // unpaired, replaced by the encoder
+        hash = (hash ^ '?') * PRIME;
+      } else {
+        hash = (hash ^ (0xe0 | (c >> 12))) * PRIME;
+        hash = (hash ^ (0x80 | ((c >> 6) & 0x3f))) * PRIME;
+        hash = (hash ^ (0x80 | (c & 0x3f))) * PRIME;
+      }
+    }
+    return hash;
+  }
+
+  static long hashBigEndian(long value, int bytes) {
+    long hash = OFFSET_BASIS;
+    for (int shift = (bytes - 1) * 8; shift >= 0; shift -= 8) {
+      hash = (hash ^ ((value >>> shift) & 0xff)) * PRIME;
+    }
+    return hash;
+  }
+
+  KeyHash() {
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.propagation.TraceContextOrSamplingFlags;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_KEY_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_KEY_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_KEY_RATE_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_KEY_RATE_DEFAULT;
+
+/**
+ * Samples records without a sampling decision from a value every hop sees the same, so that all
+ * interceptors and services with the same rate sample the same messages without coordination.
+ * <p>
+ * Decisions compare the {@link KeyHash hash} of the record key, or the incoming trace ID depending
+ * on the
+ * {@link Source}, at the rate of {@value TracingConfiguration#SAMPLER_KEY_RATE_CONFIG}. Records
+ * carrying a sampling decision keep it, and records with no such value defer to the usual samplers.
+ * <p>
+ * Unlike Brave's {@code BoundarySampler}, which salts values with a random number per JVM, the
+ * value is compared as is, so that every JVM makes the same decision for it.
+ */
+final class KeySampler {
+  static final Logger LOGGER = LoggerFactory.getLogger(KeySampler.class);
+  /** Decisions are made in steps of 1/{@value}. */
+  static final long PRECISION = 10_000L;
+  /** Lowest positive rate, one step. */
+  static final float MIN_RATE = 1.0F / PRECISION;
+
+  enum Source {
+    /** Records are sampled by the {@link brave.Tracing} or topic samplers only. */
+    NONE,
+    /** The hash of the record key, for messages traced from their first hop. */
+    RECORD_KEY,
+    /** The incoming trace ID, for traces propagated without a sampling decision. */
+    TRACE_ID
+  }
+
+  /** @return null when records are not sampled by key. */
+  static KeySampler create(TracingConfiguration configuration) {
+    Source source =
+      Source.valueOf(configuration.getStringOrDefault(SAMPLER_KEY_CONFIG, SAMPLER_KEY_DEFAULT));
+    if (source == Source.NONE) return null;
+    String rate =
+      configuration.getStringOrDefault(SAMPLER_KEY_RATE_CONFIG, SAMPLER_KEY_RATE_DEFAULT);
+    try {
+      return create(source, Float.parseFloat(rate.trim()));
+    } catch (NumberFormatException e) {
+      throw new IllegalArgumentException(
+        "Invalid " + SAMPLER_KEY_RATE_CONFIG + " " + rate + ", must be between 0 and 1", e);
+    }
+  }
+
+  /** @return null when records are not sampled by key. */
+  static KeySampler create(Source source, float rate) {
+    if (source == Source.NONE) return null;
+    if (!(rate >= 0.0F && rate <= 1.0F)) {
+      throw new IllegalArgumentException(
+        "Invalid " + SAMPLER_KEY_RATE_CONFIG + " " + rate + ", must be between 0 and 1");
+    }
+    if (rate > 0.0F && rate < MIN_RATE) {
+      LOGGER.warn("{} {} is below the lowest supported rate, using {}", SAMPLER_KEY_RATE_CONFIG,
+        rate, MIN_RATE);
+      rate = MIN_RATE;
+    }
+    return new KeySampler(source, Math.round(rate * PRECISION));
+  }
+
+  final Source source;
+  /** Values whose remainder of {@link #PRECISION} is below this bound are sampled. */
+  final long boundary;
+
+  KeySampler(Source source, long boundary) {
+    this.source = source;
+    this.boundary = boundary;
+  }
+
+  boolean isSampled(long value) {
+    return Math.floorMod(value, PRECISION) < boundary;
+  }
+
+  /** @return the extracted context or flags, with a sampling decision when one can be made. */
+  TraceContextOrSamplingFlags sample(TraceContextOrSamplingFlags extracted, Object key) {
+    if (extracted.sampled() != null) return extracted;
+    if (source == Source.RECORD_KEY) {
+      if (key == null || !KeyHash.isSupported(key)) return extracted;
+      return extracted.sampled(isSampled(KeyHash.hash(key)));
+    }
+    if (extracted.context() == null) return extracted;
+    return extracted.sampled(isSampled(extracted.context().traceId()));
+  }
+
+  /** @return whether the record is left out by this sampler. */
+  boolean isNotSampled(TraceContextOrSamplingFlags extracted, Object key) {
+    return Boolean.FALSE.equals(sample(extracted, key).sampled());
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Span;
+import java.nio.ByteBuffer;
+import org.apache.kafka.common.utils.Bytes;
+
+/**
+ * Tags spans with record keys, following the {@link Policy} configured with {@value
+ * TracingConfiguration#PRODUCER_KEY_TAG_CONFIG}.
+ * <p>
+ * By default only {@link String} keys are tagged. {@link Policy#RAW} also tags numbers, and binary
+ * keys ({@code byte[]}, {@link ByteBuffer} and {@link Bytes}) are only tagged, as lower-case hex,
+ * when {@link Policy#TRUNCATED} bounds their length. Empty keys and keys of other types are not
+ * tagged, unless hashed.
+ */
+final class KeyTag {
+  enum Policy {
+    /** Keys are not tagged. */
+    OFF,
+    /** String keys are tagged in full. */
+    STRING,
+    /** String and number keys are tagged in full. */
+    RAW,
+    /** String, number and binary keys are tagged up to a maximum length. */
+    TRUNCATED,
+    /** The {@link KeyHash} of keys is tagged instead, to correlate records without their keys. */
+    HASH
+  }
+
+  static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  /** @return null when keys are not tagged. */
+  static KeyTag create(Policy policy, int maxLength) {
+    if (policy == Policy.OFF) return null;
+    if (policy == Policy.TRUNCATED && maxLength < 1) {
+      throw new IllegalArgumentException("Key tag maximum length must be positive");
+    }
+    return new KeyTag(policy, policy == Policy.TRUNCATED ? maxLength : Integer.MAX_VALUE);
+  }
+
+  final Policy policy;
+  final int maxLength;
+
+  KeyTag(Policy policy, int maxLength) {
+    this.policy = policy;
+    this.maxLength = maxLength;
+  }
+
+  void tag(Span span, Object key) {
+    if (key == null) return;
+    if (policy == Policy.HASH) {
+      if (KeyHash.isSupported(key)) {
+        span.tag(KafkaInterceptorTagKey.KAFKA_KEY_HASH, toHex(KeyHash.hash(key)));
+      }
+      return;
+    }
+    String value = value(key);
+    if (value != null && !value.isEmpty()) span.tag(KafkaInterceptorTagKey.KAFKA_KEY, value);
+  }
+
+  /** @return the key as tagged, truncated to {@link #maxLength}, or null if not tagged. */
+  String value(Object key) {
+    if (key instanceof String) return truncate((String) key);
+    if (policy == Policy.STRING) return null;
+    if (key instanceof Number) return truncate(key.toString());
+    if (policy != Policy.TRUNCATED) return null;
+    if (key instanceof byte[]) return toHex(ByteBuffer.wrap((byte[]) key));
+    if (key instanceof ByteBuffer) return toHex((ByteBuffer) key);
+    if (key instanceof Bytes) return toHex(ByteBuffer.wrap(((Bytes) key).get()));
+    return null;
+  }
+
+  String truncate(String value) {
+    if (value.length() <= maxLength) return value;
+    int end = maxLength;
+    // do not split a surrogate pair
+    if (Character.isHighSurrogate(value.charAt(end - 1))) end--;
+    return value.substring(0, end);
+  }
+
+  /** Hex of the remaining bytes, as many as fit {@link #maxLength}, leaving the position as is. */
+  String toHex(ByteBuffer buffer) {
+    int length = Math.min(buffer.remaining(), maxLength / 2);
+    char[] hex = new char[length * 2];
+    for (int i = 0, position = buffer.position(); i < length; i++) {
+      int b = buffer.get(position + i) & 0xff;
+      hex[i * 2] = HEX_DIGITS[b >>> 4];
+      hex[i * 2 + 1] = HEX_DIGITS[b & 0xf];
+    }
+    return new String(hex);
+  }
+
+  static String toHex(long value) {
+    char[] hex = new char[16];
+    for (int i = 15; i >= 0; i--, value >>>= 4) hex[i] = HEX_DIGITS[(int) (value & 0xf)];
+    return new String(hex);
+  }
+}
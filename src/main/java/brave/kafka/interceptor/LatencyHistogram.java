@@ -0,0 +1,134 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Histogram of non-negative latencies, in milliseconds.
+ * <p>
+ * Values are counted in log-linear buckets: 8 buckets per power of two, so percentiles are within
+ * 12.5% of the recorded values. Recording is allocation-free and thread-safe.
+ */
+public final class LatencyHistogram {
+  static final int SUB_BUCKET_BITS = 3;
+  static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+  static final int BUCKETS = index(Long.MAX_VALUE) + 1;
+
+  final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+  final AtomicLong count = new AtomicLong();
+  final AtomicLong sum = new AtomicLong();
+  final AtomicLong min = new AtomicLong(Long.MAX_VALUE);
+  final AtomicLong max = new AtomicLong(-1L);
+
+  /** Negative values are ignored. */
+  public void record(long value) {
+    if (value < 0L) return;
+    counts.incrementAndGet(index(value));
+    count.incrementAndGet();
+    sum.addAndGet(value);
+    long current;
+    while (value < (current = min.get()) && !min.compareAndSet(current, value)) ;
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+  }
+
+  public long count() {
+    return count.get();
+  }
+
+  /** Returns the lowest value recorded, or -1 if nothing was recorded. */
+  public long min() {
+    long result = min.get();
+    return result == Long.MAX_VALUE ? -1L : result;
+  }
+
+  /** Returns the highest value recorded, or -1 if nothing was recorded. */
+  public long max() {
+    return max.get();
+  }
+
+  /** Returns the exact mean of the values recorded, or -1 if nothing was recorded. */
+  public double mean() {
+    long count = count();
+    return count == 0L ? -1 : (double) sum.get() / count;
+  }
+
+  /**
+   * Returns the highest value of the bucket holding this percentile, or -1 if nothing was recorded.
+   *
+   * @param percentile between 0 and 100
+   */
+  public long valueAtPercentile(double percentile) {
+    long count = count();
+    if (count == 0L) return -1L;
+    long rank = Math.max(1L, (long) Math.ceil(percentile / 100 * count));
+    long seen = 0L;
+    for (int i = 0; i < BUCKETS; i++) {
+      seen += counts.get(i);
+      if (seen >= rank) return Math.min(highestValue(i), max());
+    }
+    return max();
+  }
+
+  /** Adds the values recorded by another histogram, e.g. a stripe of the same values. */
+  void add(LatencyHistogram other) {
+    for (int i = 0; i < BUCKETS; i++) {
+      long bucketCount = other.counts.get(i);
+      if (bucketCount != 0L) counts.addAndGet(i, bucketCount);
+    }
+    count.addAndGet(other.count.get());
+    sum.addAndGet(other.sum.get());
+    long value = other.min.get(), current;
+    while (value < (current = min.get()) && !min.compareAndSet(current, value)) ;
+    value = other.max.get();
+    while (value > (current = max.get()) && !max.compareAndSet(current, value)) ;
+  }
+
+  /**
+   * Forgets the values recorded, only zeroing the buckets between the lowest and highest ones, so
+   * that a histogram of a few values is cheap to reuse. Not safe while values are recorded.
+   */
+  void clear() {
+    if (count.get() == 0L) return;
+    for (int i = index(min.get()), last = index(max.get()); i <= last; i++) counts.set(i, 0L);
+    count.set(0L);
+    sum.set(0L);
+    min.set(Long.MAX_VALUE);
+    max.set(-1L);
+  }
+
+  static int index(long value) {
+    if (value < SUB_BUCKETS) return (int) value;
+    int exponent = 63 - Long.numberOfLeadingZeros(value);
+    int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+    return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+  }
+
+  static long lowestValue(int index) {
+    if (index < SUB_BUCKETS) return index;
+    int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+    long subBucket = index % SUB_BUCKETS;
+    return (SUB_BUCKETS + subBucket) << (exponent - SUB_BUCKET_BITS);
+  }
+
+  static long highestValue(int index) {
+    return index == BUCKETS - 1 ? Long.MAX_VALUE : lowestValue(index + 1) - 1;
+  }
+
+  @Override public String toString() {
+    return "LatencyHistogram{count=" + count() + ", min=" + min() + ", max=" + max()
+      + ", p99=" + valueAtPercentile(99) + "}";
+  }
+}
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import java.io.IOException;
+import java.util.function.Supplier;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.reporter.Sender;
+import zipkin2.reporter.brave.AsyncZipkinSpanHandler;
+
+/**
+ * Span handler creating the sender and the reporter when the first span ends, so that clients
+ * start without waiting for them, and clients never sampling a span never create them.
+ * <p>
+ * When they cannot be created, the error is logged once, and spans are dropped.
+ */
+final class LazySpanHandler extends SpanHandler {
+  static final Logger LOGGER = LoggerFactory.getLogger(LazySpanHandler.class);
+
+  final Supplier<Sender> senderFactory;
+  final TracingBuilder.ReporterBuilder reporterBuilder;
+  final ReporterCounters reporterCounters;
+  /** Null until the first span ends. */
+  volatile Sender sender;
+  volatile AsyncZipkinSpanHandler delegate;
+  volatile boolean failed, closed;
+
+  LazySpanHandler(Supplier<Sender> senderFactory, TracingBuilder.ReporterBuilder reporterBuilder,
+    ReporterCounters reporterCounters) {
+    this.senderFactory = senderFactory;
+    this.reporterBuilder = reporterBuilder;
+    this.reporterCounters = reporterCounters;
+  }
+
+  @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+    AsyncZipkinSpanHandler delegate = this.delegate;
+    // checked before initialize() so that spans dropped after a failure do not contend on its lock
+    if (delegate == null && !failed && !closed) delegate = initialize();
+    if (delegate == null) {
+      reporterCounters.incrementSpansDropped(1);
+      return true;
+    }
+    return delegate.end(context, span, cause);
+  }
+
+  /** @return the reporter, or null when closed or failing to be created. */
+  synchronized AsyncZipkinSpanHandler initialize() {
+    if (delegate != null || failed || closed) return delegate;
+    try {
+      sender = senderFactory.get();
+      delegate = reporterBuilder.build(sender, reporterCounters);
+    } catch (RuntimeException e) {
+      failed = true;
+      LOGGER.error("Error creating Zipkin reporter, spans will be dropped", e);
+    }
+    return delegate;
+  }
+
+  boolean isInitialized() {
+    return delegate != null;
+  }
+
+  void flush() {
+    AsyncZipkinSpanHandler delegate = this.delegate;
+    if (delegate != null) delegate.flush();
+  }
+
+  /** Closes the reporter, then the sender, unless they were never created. */
+  synchronized void close() {
+    closed = true;
+    if (delegate == null) return;
+    delegate.close();
+    try {
+      sender.close();
+    } catch (IOException | RuntimeException e) {
+      LOGGER.warn("Error closing Zipkin sender", e);
+    }
+  }
+
+  @Override public String toString() {
+    return "LazySpanHandler{" + (delegate != null ? delegate : "not initialized") + "}";
+  }
+}
@@ -0,0 +1,143 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Span;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import org.apache.kafka.common.TopicPartition;
+
+/**
+ * Producer spans waiting for their acknowledgement.
+ * <p>
+ * Kafka acknowledgements carry no reference to the record sent, but a partition acknowledges
+ * records in the order they were sent to it: the n-th acknowledgement of a topic-partition is the
+ * one of its n-th send. This only holds when every record of the topic is sent to an explicit
+ * partition. The partition of other records is chosen after {@code onSend}, so their
+ * acknowledgements can't be told apart: once a topic is sent such a record, it is {@link
+ * #unmatchedTopics unmatched}, and its spans are finished on send.
+ * <p>
+ * Each topic-partition keeps spans in a fixed ring indexed by send sequence, so bookkeeping is
+ * lock-free and bounded: when acknowledgements fall behind by more than the capacity, the oldest
+ * pending span is finished without acknowledgement details. Unsampled sends only increment a
+ * counter.
+ */
+final class PendingSpans {
+  final int capacity;
+  final ConcurrentMap<TopicPartition, Ring> rings = new ConcurrentHashMap<>();
+  /** Topics sent records without a partition, whose acknowledgements are ignored. */
+  final Set<String> unmatchedTopics = ConcurrentHashMap.newKeySet();
+
+  /** @param maxPendingSpans per topic-partition, rounded up to a power of two. */
+  PendingSpans(int maxPendingSpans) {
+    if (maxPendingSpans <= 0) {
+      throw new IllegalArgumentException("maxPendingSpans <= 0: " + maxPendingSpans);
+    }
+    this.capacity = maxPendingSpans == 1 ? 1 : Integer.highestOneBit(maxPendingSpans - 1) << 1;
+  }
+
+  /**
+   * Records a send to this topic, keeping the span, if any, until it is acknowledged.
+   *
+   * @param partition null when chosen by the producer's partitioner.
+   */
+  void sent(String topic, Integer partition, Span span) {
+    boolean sampled = span != null && !span.isNoop();
+    if (partition == null) {
+      if (unmatchedTopics.add(topic)) finish(topic);
+      if (sampled) span.finish();
+      return;
+    }
+    if (unmatchedTopics.contains(topic)) {
+      if (sampled) span.finish();
+      return;
+    }
+    Ring ring = ring(new TopicPartition(topic, partition));
+    long sequence = ring.sent.getAndIncrement();
+    if (!sampled) return;
+    int index = index(sequence);
+    Pending pending = new Pending(sequence, span);
+    Pending evicted = ring.slots.getAndSet(index, pending);
+    if (evicted != null) evicted.span.finish();
+    // unmatched meanwhile, after its pending spans were finished
+    if (unmatchedTopics.contains(topic) && ring.slots.compareAndSet(index, pending, null)) {
+      span.finish();
+    }
+  }
+
+  /** Returns the span of the send matching this acknowledgement, if kept. */
+  Span acknowledged(String topic, int partition) {
+    if (unmatchedTopics.contains(topic)) return null;
+    Ring ring = rings.get(new TopicPartition(topic, partition));
+    if (ring == null) return null;
+    long sequence = ring.acknowledged.getAndIncrement();
+    int index = index(sequence);
+    Pending pending = ring.slots.get(index);
+    if (pending == null || pending.sequence != sequence) return null;
+    if (!ring.slots.compareAndSet(index, pending, null)) return null;
+    return pending.span;
+  }
+
+  /** Finishes spans still waiting for their acknowledgement. */
+  void finishAll() {
+    for (Ring ring : rings.values()) ring.finishAll();
+  }
+
+  void finish(String topic) {
+    for (Map.Entry<TopicPartition, Ring> entry : rings.entrySet()) {
+      if (entry.getKey().topic().equals(topic)) entry.getValue().finishAll();
+    }
+  }
+
+  int index(long sequence) {
+    return (int) (sequence & (capacity - 1));
+  }
+
+  Ring ring(TopicPartition topicPartition) {
+    Ring ring = rings.get(topicPartition);
+    if (ring != null) return ring;
+    return rings.computeIfAbsent(topicPartition, tp -> new Ring(capacity));
+  }
+
+  static final class Ring {
+    final AtomicLong sent = new AtomicLong();
+    final AtomicLong acknowledged = new AtomicLong();
+    final AtomicReferenceArray<Pending> slots;
+
+    Ring(int capacity) {
+      slots = new AtomicReferenceArray<>(capacity);
+    }
+
+    void finishAll() {
+      for (int i = 0; i < slots.length(); i++) {
+        Pending pending = slots.getAndSet(i, null);
+        if (pending != null) pending.span.finish();
+      }
+    }
+  }
+
+  static final class Pending {
+    final long sequence;
+    final Span span;
+
+    Pending(long sequence, Span span) {
+      this.sequence = sequence;
+      this.span = span;
+    }
+  }
+}
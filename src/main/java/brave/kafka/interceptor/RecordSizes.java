@@ -0,0 +1,58 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Span;
+import java.nio.ByteBuffer;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.utils.Bytes;
+
+/**
+ * Record sizes, from fields records already have: nothing is serialized again.
+ * <p>
+ * Consumed records know their serialized key and value sizes. Records sent are not serialized yet
+ * when intercepted, so sizes are estimated from keys and values already in binary form, and from
+ * the length of strings, exact for ASCII text.
+ */
+final class RecordSizes {
+
+  /** @return the estimated serialized size, or -1 if unknown. */
+  static int estimatedSize(Object value) {
+    if (value == null) return -1;
+    if (value instanceof byte[]) return ((byte[]) value).length;
+    if (value instanceof String) return ((String) value).length();
+    if (value instanceof ByteBuffer) return ((ByteBuffer) value).remaining();
+    if (value instanceof Bytes) return ((Bytes) value).get().length;
+    return -1;
+  }
+
+  /** @return bytes of header keys, estimated from their length, and values. */
+  static int headersSize(Headers headers) {
+    int size = 0;
+    for (Header header : headers) {
+      size += header.key().length();
+      if (header.value() != null) size += header.value().length;
+    }
+    return size;
+  }
+
+  /** Tags the size unless unknown. */
+  static void tag(Span span, String key, long size) {
+    if (size >= 0L) span.tag(key, String.valueOf(size));
+  }
+
+  RecordSizes() {
+  }
+}
@@ -0,0 +1,120 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import zipkin2.reporter.ReporterMetrics;
+
+/**
+ * Counters of the span reporter. Spans are counted when reported by a finished span, and dropped
+ * either when the queue is full or when sending their message failed, so spans sent are the
+ * difference between reported, dropped and queued spans.
+ * <p>
+ * The first drop is logged, further drops are only counted.
+ */
+final class ReporterCounters implements ReporterMetrics {
+  static final Logger LOGGER = LoggerFactory.getLogger(ReporterCounters.class);
+
+  final LongAdder spans = new LongAdder();
+  final LongAdder spanBytes = new LongAdder();
+  final LongAdder spansDropped = new LongAdder();
+  final LongAdder messages = new LongAdder();
+  final LongAdder messageBytes = new LongAdder();
+  final LongAdder messagesDropped = new LongAdder();
+  final LongAdder spansLostOnClose = new LongAdder();
+  final AtomicBoolean dropLogged = new AtomicBoolean();
+  volatile int queuedSpans;
+  volatile int queuedBytes;
+
+  @Override public void incrementMessages() {
+    messages.increment();
+  }
+
+  @Override public void incrementMessagesDropped(Throwable cause) {
+    messagesDropped.increment();
+    if (dropLogged.compareAndSet(false, true)) {
+      LOGGER.warn("Spans dropped: sending to Zipkin failed. Further drops are only counted.", cause);
+    }
+  }
+
+  @Override public void incrementSpans(int quantity) {
+    spans.add(quantity);
+  }
+
+  @Override public void incrementSpanBytes(int quantity) {
+    spanBytes.add(quantity);
+  }
+
+  @Override public void incrementMessageBytes(int quantity) {
+    messageBytes.add(quantity);
+  }
+
+  @Override public void incrementSpansDropped(int quantity) {
+    spansDropped.add(quantity);
+    if (dropLogged.compareAndSet(false, true)) {
+      LOGGER.warn("Spans dropped: reporter queue is full. Further drops are only counted.");
+    }
+  }
+
+  @Override public void updateQueuedSpans(int update) {
+    queuedSpans = update;
+  }
+
+  @Override public void updateQueuedBytes(int update) {
+    queuedBytes = update;
+  }
+
+  long spans() {
+    return spans.sum();
+  }
+
+  long spansDropped() {
+    return spansDropped.sum();
+  }
+
+  long spansSent() {
+    return Math.max(0L, spans() - spansDropped() - queuedSpans);
+  }
+
+  /** Spans dropped while closing, as the reporter could not send them in time. */
+  long spansLostOnClose() {
+    return spansLostOnClose.sum();
+  }
+
+  long messages() {
+    return messages.sum();
+  }
+
+  long messagesDropped() {
+    return messagesDropped.sum();
+  }
+
+  int queuedSpans() {
+    return queuedSpans;
+  }
+
+  int queuedBytes() {
+    return queuedBytes;
+  }
+
+  @Override public String toString() {
+    return "ReporterCounters{spans=" + spans() + ", spansDropped=" + spansDropped()
+      + ", spansLostOnClose=" + spansLostOnClose() + ", queuedSpans=" + queuedSpans()
+      + ", messages=" + messages()
+      + ", messagesDropped=" + messagesDropped() + "}";
+  }
+}
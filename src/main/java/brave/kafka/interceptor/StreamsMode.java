@@ -0,0 +1,50 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+/**
+ * How records of Kafka Streams internal topics are traced, configured with {@value
+ * TracingConfiguration#STREAMS_MODE_CONFIG}.
+ * <p>
+ * Kafka Streams copies headers of consumed records to the records it produces, so records left
+ * untouched still carry the trace context from one sub-topology to the next.
+ */
+enum StreamsMode {
+  /** Internal topics are traced like any other. */
+  NONE,
+  /** No span is created for internal topics, and their headers are left untouched. */
+  SKIP,
+  /**
+   * A single span per hop through an internal topic: the producer span. Consumers leave records
+   * untouched, so the next sub-topology continues from the producer span.
+   */
+  COLLAPSE;
+
+  static final String REPARTITION_SUFFIX = "-repartition";
+  static final String CHANGELOG_SUFFIX = "-changelog";
+
+  /** @return whether records sent to this topic are skipped by producers. */
+  boolean skipsOnSend(String topic) {
+    return this == SKIP && isInternalTopic(topic);
+  }
+
+  /** @return whether records consumed from this topic are skipped by consumers. */
+  boolean skipsOnConsume(String topic) {
+    return this != NONE && isInternalTopic(topic);
+  }
+
+  static boolean isInternalTopic(String topic) {
+    return topic.endsWith(REPARTITION_SUFFIX) || topic.endsWith(CHANGELOG_SUFFIX);
+  }
+}
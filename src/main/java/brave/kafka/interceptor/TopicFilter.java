@@ -0,0 +1,102 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Selects topics to trace, from lists configured with {@value
+ * TracingConfiguration#TOPICS_INCLUDE_CONFIG} and {@value
+ * TracingConfiguration#TOPICS_EXCLUDE_CONFIG}. A topic is traced when it matches an included
+ * entry, or when there are none, and matches no excluded entry.
+ * <p>
+ * Entries match that topic name only, unless prefixed with {@value #REGEX_PREFIX}: the rest is a
+ * regular expression matching whole topic names, e.g. {@code regex:.*-changelog}. Expressions are
+ * compiled once, and decisions are cached per topic.
+ */
+final class TopicFilter {
+  static final String REGEX_PREFIX = "regex:";
+  /** Topics with a cached decision, beyond which entries are matched on every call. */
+  static final int MAX_TOPICS = 10_000;
+
+  /** @return null when all topics are traced. */
+  static TopicFilter create(List<String> include, List<String> exclude) {
+    Entries included = Entries.parse(include), excluded = Entries.parse(exclude);
+    if (included == null && excluded == null) return null;
+    return new TopicFilter(included, excluded);
+  }
+
+  /** Null when all topics are included. */
+  final Entries included;
+  /** Null when no topic is excluded. */
+  final Entries excluded;
+  final ConcurrentMap<String, Boolean> decisions = new ConcurrentHashMap<>();
+
+  TopicFilter(Entries included, Entries excluded) {
+    this.included = included;
+    this.excluded = excluded;
+  }
+
+  boolean isTraced(String topic) {
+    Boolean traced = decisions.get(topic);
+    if (traced == null) {
+      traced = (included == null || included.matches(topic))
+        && (excluded == null || !excluded.matches(topic));
+      if (decisions.size() < MAX_TOPICS) decisions.put(topic, traced);
+    }
+    return traced;
+  }
+
+  static final class Entries {
+    /** @return null when there are no entries. */
+    static Entries parse(List<String> entries) {
+      if (entries == null) return null;
+      Set<String> literals = new HashSet<>();
+      List<Pattern> patterns = new ArrayList<>();
+      for (String entry : entries) {
+        String trimmed = entry.trim();
+        if (trimmed.isEmpty()) continue;
+        if (trimmed.startsWith(REGEX_PREFIX)) {
+          patterns.add(Pattern.compile(trimmed.substring(REGEX_PREFIX.length())));
+        } else {
+          literals.add(trimmed);
+        }
+      }
+      if (literals.isEmpty() && patterns.isEmpty()) return null;
+      return new Entries(literals, patterns.toArray(new Pattern[0]));
+    }
+
+    final Set<String> literals;
+    final Pattern[] patterns;
+
+    Entries(Set<String> literals, Pattern[] patterns) {
+      this.literals = literals;
+      this.patterns = patterns;
+    }
+
+    boolean matches(String topic) {
+      if (literals.contains(topic)) return true;
+      for (Pattern pattern : patterns) {
+        if (pattern.matcher(topic).matches()) return true;
+      }
+      return false;
+    }
+  }
+}
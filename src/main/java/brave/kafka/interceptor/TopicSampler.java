@@ -0,0 +1,128 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Span;
+import brave.Tracer;
+import brave.propagation.TraceContextOrSamplingFlags;
+import brave.sampler.RateLimitingSampler;
+import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.regex.Pattern;
+
+/**
+ * Samples new traces by topic, from rules configured with the {@value
+ * TracingConfiguration#SAMPLER_TOPIC_PREFIX} prefix: {@code zipkin.sampler.topic.orders=0.5}
+ * samples half of the traces starting on topic {@code orders}, and {@code
+ * zipkin.sampler.topic.logs-*=10/s} at most 10 traces per second on topics starting with {@code
+ * logs-}, shared by these topics.
+ * <p>
+ * Patterns may contain {@code *} wildcards. The rule with the longest pattern matching a topic
+ * applies. Topics matching no rule defer to the
+ * {@link brave.Tracing} sampler. Rules are resolved once per topic.
+ */
+final class TopicSampler implements SamplerFunction<String> {
+  static final String RATE_LIMITED_SUFFIX = "/s";
+  /** Topics with a resolved rule, beyond which rules are matched on every call. */
+  static final int MAX_TOPICS = 10_000;
+  /** Marks topics matching no rule, as the cache cannot hold null values. */
+  static final Sampler NO_RULE = new Sampler() {
+    @Override public boolean isSampled(long traceId) {
+      return false;
+    }
+  };
+
+  /** Starts a span, sampled by topic when there is no incoming sampling decision. */
+  static Span nextSpan(Tracer tracer, SamplerFunction<String> sampler,
+    TraceContextOrSamplingFlags extracted, String topic) {
+    if (extracted.context() == null && extracted.sampled() == null) {
+      return tracer.nextSpan(sampler, topic);
+    }
+    return tracer.nextSpan(extracted);
+  }
+
+  /** @return null when there are no rules. */
+  static TopicSampler create(Map<String, String> rates) {
+    if (rates.isEmpty()) return null;
+    List<Rule> rules = new ArrayList<>();
+    rates.forEach((pattern, rate) -> rules.add(new Rule(pattern, sampler(pattern, rate))));
+    // longest patterns first, literal topic names before patterns of the same length
+    rules.sort(Comparator.comparingInt((Rule rule) -> -rule.pattern.length())
+      .thenComparing(rule -> rule.regex != null));
+    return new TopicSampler(rules);
+  }
+
+  static Sampler sampler(String pattern, String rate) {
+    String value = rate.trim();
+    if (value.endsWith(RATE_LIMITED_SUFFIX)) {
+      String tracesPerSecond = value.substring(0, value.length() - RATE_LIMITED_SUFFIX.length());
+      return RateLimitingSampler.create(Integer.parseInt(tracesPerSecond.trim()));
+    }
+    float probability = Float.parseFloat(value);
+    if (!(probability >= 0.0F && probability <= 1.0F)) {
+      throw new IllegalArgumentException(
+        "Invalid sampler rate " + rate + " for topic " + pattern + ", must be between 0 and 1");
+    }
+    return Sampler.create(probability);
+  }
+
+  final Rule[] rules;
+  final ConcurrentMap<String, Sampler> samplers = new ConcurrentHashMap<>();
+
+  TopicSampler(List<Rule> rules) {
+    this.rules = rules.toArray(new Rule[0]);
+  }
+
+  @Override public Boolean trySample(String topic) {
+    if (topic == null) return null;
+    Sampler sampler = samplers.get(topic);
+    if (sampler == null) {
+      sampler = match(topic);
+      if (samplers.size() < MAX_TOPICS) samplers.put(topic, sampler);
+    }
+    // samplers created here do not depend on the trace ID
+    return sampler == NO_RULE ? null : sampler.isSampled(0L);
+  }
+
+  Sampler match(String topic) {
+    for (Rule rule : rules) {
+      if (rule.matches(topic)) return rule.sampler;
+    }
+    return NO_RULE;
+  }
+
+  static final class Rule {
+    final String pattern;
+    /** Null when the pattern is a literal topic name. */
+    final Pattern regex;
+    final Sampler sampler;
+
+    Rule(String pattern, Sampler sampler) {
+      this.pattern = pattern;
+      this.regex = pattern.indexOf('*') < 0 ? null : Pattern.compile(
+        ("\\Q" + pattern + "\\E").replace("*", "\\E.*\\Q"));
+      this.sampler = sampler;
+    }
+
+    boolean matches(String topic) {
+      return regex == null ? pattern.equals(topic) : regex.matcher(topic).matches();
+    }
+  }
+}
@@ -14,32 +14,79 @@
 package brave.kafka.interceptor;
 
 import brave.Tracing;
+import brave.sampler.RateLimitingSampler;
 import brave.sampler.Sampler;
+import brave.sampler.SamplerFunction;
+import brave.sampler.SamplerFunctions;
+import okhttp3.HttpUrl;
 import org.apache.kafka.clients.CommonClientConfigs;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 import zipkin2.codec.Encoding;
+import zipkin2.reporter.ReporterMetrics;
 import zipkin2.reporter.Sender;
 import zipkin2.reporter.brave.AsyncZipkinSpanHandler;
 import zipkin2.reporter.kafka.KafkaSender;
 import zipkin2.reporter.okhttp3.OkHttpSender;
 
+import static brave.kafka.interceptor.TracingConfiguration.AGGREGATE_ENABLED_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.AGGREGATE_ENABLED_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.AGGREGATE_INTERVAL_MS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.AGGREGATE_INTERVAL_MS_DEFAULT;
 import static brave.kafka.interceptor.TracingConfiguration.ENCODING_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.ENCODING_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_DIRECTORY_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_FORWARD_INTERVAL_MS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_FORWARD_INTERVAL_MS_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_FORWARD_SENDER_TYPE_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_FORWARD_SENDER_TYPE_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_MAX_BYTES_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_MAX_BYTES_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_SEGMENT_BYTES_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_SEGMENT_BYTES_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_COMPRESSION_ENABLED_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_COMPRESSION_ENABLED_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_CONNECT_TIMEOUT_MS_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.HTTP_ENDPOINT_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.HTTP_ENDPOINT_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_MAX_REQUESTS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_MAX_REQUESTS_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_MESSAGE_MAX_BYTES_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_MESSAGE_MAX_BYTES_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_READ_TIMEOUT_MS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_TIMEOUT_MS_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_WRITE_TIMEOUT_MS_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.KAFKA_BOOTSTRAP_SERVERS_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.LOCAL_SERVICE_NAME_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.LOCAL_SERVICE_NAME_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_CLOSE_TIMEOUT_MS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_CLOSE_TIMEOUT_MS_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_LAZY_ENABLED_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_LAZY_ENABLED_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_MESSAGE_MAX_BYTES_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_MESSAGE_TIMEOUT_MS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_MESSAGE_TIMEOUT_MS_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_QUEUED_MAX_BYTES_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_QUEUED_MAX_SPANS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_QUEUED_MAX_SPANS_DEFAULT;
 import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_RATE_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_RATE_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_TRACES_PER_SECOND_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_TRACES_PER_SECOND_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_TYPE_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_TYPE_DEFAULT;
 import static brave.kafka.interceptor.TracingConfiguration.SENDER_TYPE_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.SENDER_TYPE_DEFAULT;
 import static brave.kafka.interceptor.TracingConfiguration.TRACE_ID_128BIT_ENABLED_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.TRACE_ID_128BIT_ENABLED_DEFAULT;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Initialization of Zipkin Tracing components.
@@ -50,6 +97,14 @@ class TracingBuilder {
   final String localServiceName;
   final boolean traceId128Bit;
   final TracingConfiguration configuration;
+  final ReporterCounters reporterCounters = new ReporterCounters();
+  /** Reporting components created by {@link #build()}, null when spans are not sent. */
+  LazySpanHandler spanHandler;
+  /** Aggregates spans before {@link #spanHandler}, null unless enabled. */
+  AggregatingSpanHandler aggregatingSpanHandler;
+  int closeTimeoutMs;
+  /** Samples new traces by topic, deferring to the {@link Tracing} sampler by default. */
+  SamplerFunction<String> topicSampler = SamplerFunctions.deferDecision();
 
   TracingBuilder(TracingConfiguration configuration) {
     this.configuration = configuration;
@@ -62,37 +117,67 @@ class TracingBuilder {
 
   Tracing build() {
     Tracing.Builder builder = Tracing.newBuilder();
-    Sender sender = new SenderBuilder(configuration).build();
-    if (sender != null) {
-      // TODO: close hook for both sender and handler?
-      AsyncZipkinSpanHandler zipkinSpanHandler = AsyncZipkinSpanHandler.create(sender);
-      builder.addSpanHandler(zipkinSpanHandler);
-    }
-    Sampler sampler = new SamplerBuilder(configuration).build();
-    return builder.sampler(sampler)
+    SenderBuilder senderBuilder = new SenderBuilder(configuration);
+    if (senderBuilder.senderType != SenderBuilder.SenderType.NONE) {
+      ReporterBuilder reporterBuilder = new ReporterBuilder(configuration);
+      spanHandler = new LazySpanHandler(senderBuilder::build, reporterBuilder, reporterCounters);
+      if (!reporterBuilder.lazy) spanHandler.initialize();
+      closeTimeoutMs = reporterBuilder.closeTimeoutMs;
+      if (Boolean.parseBoolean(
+        configuration.getStringOrDefault(AGGREGATE_ENABLED_CONFIG, AGGREGATE_ENABLED_DEFAULT))) {
+        aggregatingSpanHandler = new AggregatingSpanHandler(spanHandler, configuration
+          .getIntOrDefault(AGGREGATE_INTERVAL_MS_CONFIG, AGGREGATE_INTERVAL_MS_DEFAULT),
+          traceId128Bit);
+        // unsampled spans are recorded to be aggregated, then dropped
+        builder.addSpanHandler(aggregatingSpanHandler).alwaysSampleLocal();
+      } else {
+        builder.addSpanHandler(spanHandler);
+      }
+    }
+    SamplerBuilder samplerBuilder = new SamplerBuilder(configuration);
+    TopicSampler topicSampler = samplerBuilder.buildTopicSampler();
+    if (topicSampler != null) this.topicSampler = topicSampler;
+    return builder.sampler(samplerBuilder.build())
       .localServiceName(localServiceName)
       .traceId128Bit(traceId128Bit)
       .build();
   }
 
+  /**
+   * Settings are read and validated when created, so that invalid ones fail the client start, even
+   * though the sender itself may only be built when the first span ends.
+   */
   static class SenderBuilder {
     final SenderType senderType;
-    final TracingConfiguration configuration;
+    /** Null when spans are not sent. */
+    final Encoding encoding;
+    /** Builder of the {@link #senderType}, null when spans are not sent. */
+    final HttpSenderBuilder httpSenderBuilder;
+    final KafkaSenderBuilder kafkaSenderBuilder;
+    final FileSenderBuilder fileSenderBuilder;
 
     SenderBuilder(TracingConfiguration configuration) {
       String senderTypeValue =
         configuration.getStringOrDefault(SENDER_TYPE_CONFIG, SENDER_TYPE_DEFAULT);
       this.senderType = SenderType.valueOf(senderTypeValue);
-      this.configuration = configuration;
+      this.encoding =
+        senderType == SenderType.NONE ? null : new EncodingBuilder(configuration).build();
+      this.httpSenderBuilder =
+        senderType == SenderType.HTTP ? new HttpSenderBuilder(configuration) : null;
+      this.kafkaSenderBuilder =
+        senderType == SenderType.KAFKA ? new KafkaSenderBuilder(configuration) : null;
+      this.fileSenderBuilder =
+        senderType == SenderType.FILE ? new FileSenderBuilder(configuration) : null;
     }
 
     Sender build() {
-      Encoding encoding = new EncodingBuilder(configuration).build();
       switch (senderType) {
         case HTTP:
-          return new HttpSenderBuilder(configuration).build(encoding);
+          return httpSenderBuilder.build(encoding);
         case KAFKA:
-          return new KafkaSenderBuilder(configuration).build(encoding);
+          return kafkaSenderBuilder.build(encoding);
+        case FILE:
+          return fileSenderBuilder.build(encoding);
         case NONE:
           return null;
         default:
@@ -101,19 +186,109 @@ class TracingBuilder {
     }
 
     enum SenderType {
-      NONE, HTTP, KAFKA
+      NONE, HTTP, KAFKA, FILE
+    }
+  }
+
+  static class FileSenderBuilder {
+    final String directory;
+    final int segmentBytes;
+    final int maxBytes;
+    final SenderBuilder.SenderType forwardSenderType;
+    /** Builder of the {@link #forwardSenderType}, null when spans are only kept in files. */
+    final HttpSenderBuilder forwardHttpSenderBuilder;
+    final KafkaSenderBuilder forwardKafkaSenderBuilder;
+    final int forwardIntervalMs;
+
+    FileSenderBuilder(TracingConfiguration configuration) {
+      this.directory = configuration.getString(FILE_DIRECTORY_CONFIG);
+      if (directory == null) {
+        throw new IllegalArgumentException(FILE_DIRECTORY_CONFIG + " is required by FILE sender");
+      }
+      this.segmentBytes =
+        configuration.getIntOrDefault(FILE_SEGMENT_BYTES_CONFIG, FILE_SEGMENT_BYTES_DEFAULT);
+      this.maxBytes = configuration.getIntOrDefault(FILE_MAX_BYTES_CONFIG, FILE_MAX_BYTES_DEFAULT);
+      this.forwardSenderType = SenderBuilder.SenderType.valueOf(configuration.getStringOrDefault(
+        FILE_FORWARD_SENDER_TYPE_CONFIG, FILE_FORWARD_SENDER_TYPE_DEFAULT));
+      if (forwardSenderType == SenderBuilder.SenderType.FILE) {
+        throw new IllegalArgumentException(
+          FILE_FORWARD_SENDER_TYPE_CONFIG + " must be NONE, HTTP or KAFKA");
+      }
+      this.forwardHttpSenderBuilder = forwardSenderType == SenderBuilder.SenderType.HTTP
+        ? new HttpSenderBuilder(configuration) : null;
+      this.forwardKafkaSenderBuilder = forwardSenderType == SenderBuilder.SenderType.KAFKA
+        ? new KafkaSenderBuilder(configuration) : null;
+      this.forwardIntervalMs = configuration.getIntOrDefault(FILE_FORWARD_INTERVAL_MS_CONFIG,
+        FILE_FORWARD_INTERVAL_MS_DEFAULT);
+    }
+
+    Sender build(Encoding encoding) {
+      final Sender forwardTo;
+      switch (forwardSenderType) {
+        case HTTP:
+          forwardTo = forwardHttpSenderBuilder.build(encoding);
+          break;
+        case KAFKA:
+          forwardTo = forwardKafkaSenderBuilder.build(encoding);
+          break;
+        case NONE:
+          forwardTo = null;
+          break;
+        default:
+          throw new IllegalArgumentException("Zipkin file forward sender type unknown");
+      }
+      try {
+        return new FileSender(encoding, Paths.get(directory), segmentBytes, maxBytes, forwardTo,
+          forwardIntervalMs);
+      } catch (IOException e) {
+        throw new UncheckedIOException("Error opening spans directory " + directory, e);
+      }
     }
   }
 
+  /**
+   * Requests are gzip-compressed by default: spans compress well, and compression costs less than
+   * sending them uncompressed. Up to {@code maxRequests} messages are sent concurrently.
+   */
   static class HttpSenderBuilder {
     final String endpoint;
+    final boolean compressionEnabled;
+    final int messageMaxBytes;
+    final int maxRequests;
+    final int connectTimeoutMs;
+    final int readTimeoutMs;
+    final int writeTimeoutMs;
 
     HttpSenderBuilder(TracingConfiguration configuration) {
       this.endpoint = configuration.getStringOrDefault(HTTP_ENDPOINT_CONFIG, HTTP_ENDPOINT_DEFAULT);
+      if (HttpUrl.parse(endpoint) == null) {
+        throw new IllegalArgumentException("Invalid " + HTTP_ENDPOINT_CONFIG + " " + endpoint);
+      }
+      this.compressionEnabled = Boolean.parseBoolean(configuration.getStringOrDefault(
+        HTTP_COMPRESSION_ENABLED_CONFIG, HTTP_COMPRESSION_ENABLED_DEFAULT));
+      this.messageMaxBytes = configuration.getIntOrDefault(HTTP_MESSAGE_MAX_BYTES_CONFIG,
+        HTTP_MESSAGE_MAX_BYTES_DEFAULT);
+      this.maxRequests =
+        configuration.getIntOrDefault(HTTP_MAX_REQUESTS_CONFIG, HTTP_MAX_REQUESTS_DEFAULT);
+      this.connectTimeoutMs =
+        configuration.getIntOrDefault(HTTP_CONNECT_TIMEOUT_MS_CONFIG, HTTP_TIMEOUT_MS_DEFAULT);
+      this.readTimeoutMs =
+        configuration.getIntOrDefault(HTTP_READ_TIMEOUT_MS_CONFIG, HTTP_TIMEOUT_MS_DEFAULT);
+      this.writeTimeoutMs =
+        configuration.getIntOrDefault(HTTP_WRITE_TIMEOUT_MS_CONFIG, HTTP_TIMEOUT_MS_DEFAULT);
     }
 
     Sender build(Encoding encoding) {
-      return OkHttpSender.newBuilder().endpoint(endpoint).encoding(encoding).build();
+      return OkHttpSender.newBuilder()
+        .endpoint(endpoint)
+        .encoding(encoding)
+        .compressionEnabled(compressionEnabled)
+        .messageMaxBytes(messageMaxBytes)
+        .maxRequests(maxRequests)
+        .connectTimeout(connectTimeoutMs)
+        .readTimeout(readTimeoutMs)
+        .writeTimeout(writeTimeoutMs)
+        .build();
     }
   }
 
@@ -136,12 +311,61 @@ class TracingBuilder {
     }
   }
 
+  /**
+   * Reporting never blocks Kafka client threads: finished spans are added to a bounded queue,
+   * drained by a background thread, and dropped when the queue is full.
+   */
+  static class ReporterBuilder {
+    final int queuedMaxSpans;
+    final int queuedMaxBytes;
+    final int messageMaxBytes;
+    final int messageTimeoutMs;
+    final int closeTimeoutMs;
+    /** Whether the sender and reporter are created when the first span ends. */
+    final boolean lazy;
+
+    ReporterBuilder(TracingConfiguration configuration) {
+      this.queuedMaxSpans = configuration.getIntOrDefault(REPORTER_QUEUED_MAX_SPANS_CONFIG,
+        REPORTER_QUEUED_MAX_SPANS_DEFAULT);
+      // zero keeps the reporter defaults: 1% of the heap, and the sender's maximum
+      this.queuedMaxBytes = configuration.getIntOrDefault(REPORTER_QUEUED_MAX_BYTES_CONFIG, 0);
+      this.messageMaxBytes = configuration.getIntOrDefault(REPORTER_MESSAGE_MAX_BYTES_CONFIG, 0);
+      this.messageTimeoutMs = configuration.getIntOrDefault(REPORTER_MESSAGE_TIMEOUT_MS_CONFIG,
+        REPORTER_MESSAGE_TIMEOUT_MS_DEFAULT);
+      this.closeTimeoutMs = configuration.getIntOrDefault(REPORTER_CLOSE_TIMEOUT_MS_CONFIG,
+        REPORTER_CLOSE_TIMEOUT_MS_DEFAULT);
+      this.lazy = Boolean.parseBoolean(configuration.getStringOrDefault(
+        REPORTER_LAZY_ENABLED_CONFIG, REPORTER_LAZY_ENABLED_DEFAULT));
+    }
+
+    AsyncZipkinSpanHandler build(Sender sender, ReporterMetrics metrics) {
+      AsyncZipkinSpanHandler.Builder builder = AsyncZipkinSpanHandler.newBuilder(sender)
+        .metrics(metrics)
+        .queuedMaxSpans(queuedMaxSpans)
+        .messageTimeout(messageTimeoutMs, TimeUnit.MILLISECONDS)
+        .closeTimeout(closeTimeoutMs, TimeUnit.MILLISECONDS);
+      if (queuedMaxBytes > 0) builder.queuedMaxBytes(queuedMaxBytes);
+      if (messageMaxBytes > 0) builder.messageMaxBytes(messageMaxBytes);
+      return builder.build();
+    }
+  }
+
+  /** {@code PROTO3} is about half the size of {@code JSON}, and cheaper to encode. */
   static class EncodingBuilder {
     final Encoding encoding;
 
     EncodingBuilder(TracingConfiguration configuration) {
       String encodingValue = configuration.getStringOrDefault(ENCODING_CONFIG, ENCODING_DEFAULT);
-      encoding = Encoding.valueOf(encodingValue);
+      try {
+        encoding = Encoding.valueOf(encodingValue.trim().toUpperCase(Locale.ROOT));
+      } catch (IllegalArgumentException e) {
+        throw new IllegalArgumentException("Invalid " + ENCODING_CONFIG + " " + encodingValue
+          + ", must be JSON or PROTO3 (recommended)", e);
+      }
+      if (encoding == Encoding.THRIFT) {
+        throw new IllegalArgumentException(
+          "THRIFT encoding is not supported by Zipkin v2 span reporting, use PROTO3 instead");
+      }
     }
 
     Encoding build() {
@@ -152,23 +376,50 @@ class TracingBuilder {
   static class SamplerBuilder {
     static final Float SAMPLER_RATE_FALLBACK = 0.0F;
 
+    final SamplerType samplerType;
     final Float rate;
+    final int tracesPerSecond;
+    final Map<String, String> topicRates;
 
     SamplerBuilder(TracingConfiguration configuration) {
+      this.samplerType = SamplerType.valueOf(
+        configuration.getStringOrDefault(SAMPLER_TYPE_CONFIG, SAMPLER_TYPE_DEFAULT));
       String rateValue =
         configuration.getStringOrDefault(SAMPLER_RATE_CONFIG, SAMPLER_RATE_DEFAULT);
       Float rate = Float.valueOf(rateValue);
-      if (rate > 1.0 || rate <= 0.0 || rate.isNaN()) {
-        rate = SAMPLER_RATE_FALLBACK;
+      if (rate > 1.0 || rate < 0.0 || rate.isNaN()) {
         LOGGER.warn(
           "Invalid sampler rate {}, must be between 0 and 1. Falling back to {}",
           rate, SAMPLER_RATE_FALLBACK);
+        rate = SAMPLER_RATE_FALLBACK;
       }
       this.rate = rate;
+      this.tracesPerSecond = configuration.getIntOrDefault(SAMPLER_TRACES_PER_SECOND_CONFIG,
+        SAMPLER_TRACES_PER_SECOND_DEFAULT);
+      this.topicRates = configuration.getSamplerTopicRates();
     }
 
     Sampler build() {
-      return Sampler.create(rate);
+      switch (samplerType) {
+        case PROBABILITY:
+          return Sampler.create(rate);
+        case RATE_LIMITED:
+          return RateLimitingSampler.create(tracesPerSecond);
+        default:
+          throw new IllegalArgumentException("Zipkin sampler type unknown");
+      }
+    }
+
+    /** @return null unless sampling rates are configured per topic. */
+    TopicSampler buildTopicSampler() {
+      return TopicSampler.create(topicRates);
+    }
+
+    enum SamplerType {
+      /** A fixed probability, {@value TracingConfiguration#SAMPLER_RATE_CONFIG}. */
+      PROBABILITY,
+      /** At most {@value TracingConfiguration#SAMPLER_TRACES_PER_SECOND_CONFIG} new traces. */
+      RATE_LIMITED
     }
   }
 }
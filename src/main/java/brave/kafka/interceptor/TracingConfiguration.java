@@ -14,9 +14,14 @@
 package brave.kafka.interceptor;
 
 import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.regex.Pattern;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
@@ -27,12 +32,32 @@ import org.slf4j.LoggerFactory;
  */
 public class TracingConfiguration {
   static final Logger LOGGER = LoggerFactory.getLogger(TracingConfiguration.class);
+  static final Pattern COMMA = Pattern.compile(",");
 
   public static final String SENDER_TYPE_CONFIG = "zipkin.sender.type";
   public static final String SENDER_TYPE_DEFAULT = "NONE";
   public static final String HTTP_ENDPOINT_CONFIG = "zipkin.http.endpoint";
   public static final String HTTP_ENDPOINT_DEFAULT = "http://localhost:9411/api/v2/spans";
+  public static final String HTTP_COMPRESSION_ENABLED_CONFIG = "zipkin.http.compression.enabled";
+  public static final String HTTP_COMPRESSION_ENABLED_DEFAULT = "true";
+  public static final String HTTP_MESSAGE_MAX_BYTES_CONFIG = "zipkin.http.message.max.bytes";
+  public static final int HTTP_MESSAGE_MAX_BYTES_DEFAULT = 5 * 1024 * 1024;
+  public static final String HTTP_MAX_REQUESTS_CONFIG = "zipkin.http.max.requests";
+  public static final int HTTP_MAX_REQUESTS_DEFAULT = 64;
+  public static final String HTTP_CONNECT_TIMEOUT_MS_CONFIG = "zipkin.http.connect.timeout.ms";
+  public static final String HTTP_READ_TIMEOUT_MS_CONFIG = "zipkin.http.read.timeout.ms";
+  public static final String HTTP_WRITE_TIMEOUT_MS_CONFIG = "zipkin.http.write.timeout.ms";
+  public static final int HTTP_TIMEOUT_MS_DEFAULT = 10_000;
   public static final String KAFKA_BOOTSTRAP_SERVERS_CONFIG = "zipkin.kafka.bootstrap.servers";
+  public static final String FILE_DIRECTORY_CONFIG = "zipkin.file.directory";
+  public static final String FILE_SEGMENT_BYTES_CONFIG = "zipkin.file.segment.bytes";
+  public static final int FILE_SEGMENT_BYTES_DEFAULT = 16 * 1024 * 1024;
+  public static final String FILE_MAX_BYTES_CONFIG = "zipkin.file.max.bytes";
+  public static final int FILE_MAX_BYTES_DEFAULT = 256 * 1024 * 1024;
+  public static final String FILE_FORWARD_SENDER_TYPE_CONFIG = "zipkin.file.forward.sender.type";
+  public static final String FILE_FORWARD_SENDER_TYPE_DEFAULT = "NONE";
+  public static final String FILE_FORWARD_INTERVAL_MS_CONFIG = "zipkin.file.forward.interval.ms";
+  public static final int FILE_FORWARD_INTERVAL_MS_DEFAULT = 5000;
   public static final String LOCAL_SERVICE_NAME_CONFIG = "zipkin.local.service.name";
   public static final String LOCAL_SERVICE_NAME_DEFAULT = "kafka-client";
   public static final String REMOTE_SERVICE_NAME_CONFIG = "zipkin.remote.service.name";
@@ -43,7 +68,63 @@ public class TracingConfiguration {
   public static final String ENCODING_DEFAULT = "JSON";
   public static final String SAMPLER_RATE_CONFIG = "zipkin.sampler.rate";
   public static final String SAMPLER_RATE_DEFAULT = "1.0F";
+  public static final String SAMPLER_TYPE_CONFIG = "zipkin.sampler.type";
+  public static final String SAMPLER_TYPE_DEFAULT = "PROBABILITY";
+  public static final String SAMPLER_TRACES_PER_SECOND_CONFIG = "zipkin.sampler.traces.per.second";
+  public static final int SAMPLER_TRACES_PER_SECOND_DEFAULT = 10;
+  public static final String SAMPLER_TOPIC_PREFIX = "zipkin.sampler.topic.";
+  public static final String SAMPLER_KEY_CONFIG = "zipkin.sampler.key";
+  public static final String SAMPLER_KEY_DEFAULT = "NONE";
+  public static final String SAMPLER_KEY_RATE_CONFIG = "zipkin.sampler.key.rate";
+  public static final String SAMPLER_KEY_RATE_DEFAULT = "1.0";
   public static final String KAFKA_OVERRIDE_PREFIX = "zipkin.kafka.";
+  public static final String TAGS_PREFIX = "zipkin.tags.";
+  public static final String PROPAGATION_FORMAT_CONFIG = "zipkin.propagation.format";
+  public static final String PROPAGATION_FORMAT_DEFAULT = "B3_MULTI";
+  public static final String METRICS_ENABLED_CONFIG = "zipkin.metrics.enabled";
+  public static final String METRICS_ENABLED_DEFAULT = "false";
+  public static final String CONSUMER_SPAN_MODE_CONFIG = "zipkin.consumer.span.mode";
+  public static final String CONSUMER_SPAN_MODE_DEFAULT = "RECORD";
+  public static final String CONSUMER_SPAN_FINISH_CONFIG = "zipkin.consumer.span.finish";
+  public static final String CONSUMER_SPAN_FINISH_DEFAULT = "POLL";
+  public static final String CONSUMER_PENDING_SPANS_MAX_CONFIG = "zipkin.consumer.pending.spans.max";
+  public static final int CONSUMER_PENDING_SPANS_MAX_DEFAULT = 16;
+  public static final String CONSUMER_COMMIT_SPANS_ENABLED_CONFIG =
+    "zipkin.consumer.commit.spans.enabled";
+  public static final String CONSUMER_COMMIT_SPANS_ENABLED_DEFAULT = "false";
+  public static final String CONSUMER_PARTITION_IDLE_MS_CONFIG = "zipkin.consumer.partition.idle.ms";
+  public static final int CONSUMER_PARTITION_IDLE_MS_DEFAULT = 300_000;
+  public static final String CONSUMER_LATENCY_ENABLED_CONFIG = "zipkin.consumer.latency.enabled";
+  public static final String CONSUMER_LATENCY_ENABLED_DEFAULT = "false";
+  public static final String PRODUCER_SPAN_FINISH_CONFIG = "zipkin.producer.span.finish";
+  public static final String PRODUCER_SPAN_FINISH_DEFAULT = "SEND";
+  public static final String PRODUCER_PENDING_SPANS_MAX_CONFIG = "zipkin.producer.pending.spans.max";
+  public static final int PRODUCER_PENDING_SPANS_MAX_DEFAULT = 1024;
+  public static final String PRODUCER_KEY_TAG_CONFIG = "zipkin.producer.key.tag";
+  public static final String PRODUCER_KEY_TAG_DEFAULT = "STRING";
+  public static final String PRODUCER_KEY_TAG_MAX_LENGTH_CONFIG =
+    "zipkin.producer.key.tag.max.length";
+  public static final int PRODUCER_KEY_TAG_MAX_LENGTH_DEFAULT = 64;
+  public static final String TOPICS_INCLUDE_CONFIG = "zipkin.topics.include";
+  public static final String TOPICS_EXCLUDE_CONFIG = "zipkin.topics.exclude";
+  public static final String SIZE_TAGS_ENABLED_CONFIG = "zipkin.size.tags.enabled";
+  public static final String SIZE_TAGS_ENABLED_DEFAULT = "false";
+  public static final String STREAMS_MODE_CONFIG = "zipkin.streams.mode";
+  public static final String STREAMS_MODE_DEFAULT = "NONE";
+  public static final String REPORTER_QUEUED_MAX_SPANS_CONFIG = "zipkin.reporter.queued.max.spans";
+  public static final int REPORTER_QUEUED_MAX_SPANS_DEFAULT = 10000;
+  public static final String REPORTER_QUEUED_MAX_BYTES_CONFIG = "zipkin.reporter.queued.max.bytes";
+  public static final String REPORTER_MESSAGE_MAX_BYTES_CONFIG = "zipkin.reporter.message.max.bytes";
+  public static final String REPORTER_MESSAGE_TIMEOUT_MS_CONFIG = "zipkin.reporter.message.timeout.ms";
+  public static final int REPORTER_MESSAGE_TIMEOUT_MS_DEFAULT = 1000;
+  public static final String REPORTER_LAZY_ENABLED_CONFIG = "zipkin.reporter.lazy.enabled";
+  public static final String REPORTER_LAZY_ENABLED_DEFAULT = "true";
+  public static final String AGGREGATE_ENABLED_CONFIG = "zipkin.aggregate.enabled";
+  public static final String AGGREGATE_ENABLED_DEFAULT = "false";
+  public static final String AGGREGATE_INTERVAL_MS_CONFIG = "zipkin.aggregate.interval.ms";
+  public static final int AGGREGATE_INTERVAL_MS_DEFAULT = 60_000;
+  public static final String REPORTER_CLOSE_TIMEOUT_MS_CONFIG = "zipkin.reporter.close.timeout.ms";
+  public static final int REPORTER_CLOSE_TIMEOUT_MS_DEFAULT = 1000;
 
   final Map<String, ?> configs;
 
@@ -65,18 +146,30 @@ public class TracingConfiguration {
   }
 
   /**
-   * @return Value as String. If not found, then null is returned.
+   * @return Value as String, whether the property is a String or another type such as Boolean. If
+   *         not found, then the default value is returned.
    */
   String getStringOrDefault(String configKey, String defaultValue) {
-    final String value;
     final Object valueObject = configs.get(configKey);
-    if (valueObject instanceof String) {
-      value = (String) valueObject;
+    if (valueObject != null) return String.valueOf(valueObject);
+    // optional properties are absent most of the time
+    if (defaultValue != null) {
+      LOGGER.debug("{} is not found in properties, using {}", configKey, defaultValue);
     } else {
       LOGGER.warn("{} of type String is not found in properties", configKey);
-      value = defaultValue;
     }
-    return value;
+    return defaultValue;
+  }
+
+  /**
+   * @return Value as int, whether the property is a Number or a String. If not found, then the
+   *         default value is returned.
+   */
+  int getIntOrDefault(String configKey, int defaultValue) {
+    final Object valueObject = configs.get(configKey);
+    if (valueObject instanceof Number) return ((Number) valueObject).intValue();
+    if (valueObject instanceof String) return Integer.parseInt(((String) valueObject).trim());
+    return defaultValue;
   }
 
   String getString(String configKey) {
@@ -99,6 +192,19 @@ public class TracingConfiguration {
     return value;
   }
 
+  /**
+   * @return Elements of a List property as they are, or a String property split on commas, as
+   *         Kafka does for list properties. If not found, then null is returned.
+   */
+  List<String> getList(String configKey) {
+    final Object valueObject = configs.get(configKey);
+    if (valueObject == null) return null;
+    if (!(valueObject instanceof List)) return Arrays.asList(COMMA.split(valueObject.toString()));
+    List<String> values = new ArrayList<>();
+    for (Object element : (List<?>) valueObject) values.add(String.valueOf(element));
+    return values;
+  }
+
   Map<String, String> getKafkaOverrides() {
     Map<String, String> overrides = new HashMap<>();
 
@@ -110,6 +216,30 @@ public class TracingConfiguration {
     return overrides;
   }
 
+  /** @return Static tags, from properties with the {@value #TAGS_PREFIX} prefix. */
+  Map<String, String> getTags() {
+    return getByPrefix(TAGS_PREFIX);
+  }
+
+  /**
+   * @return Sampling rates by topic pattern, from properties with the {@value
+   *         #SAMPLER_TOPIC_PREFIX} prefix.
+   */
+  Map<String, String> getSamplerTopicRates() {
+    return getByPrefix(SAMPLER_TOPIC_PREFIX);
+  }
+
+  /** @return Values of properties starting with this prefix, by key without prefix. */
+  Map<String, String> getByPrefix(String prefix) {
+    Map<String, String> values = new LinkedHashMap<>();
+    for (String key : getKeySet()) {
+      if (key.startsWith(prefix)) {
+        values.put(key.substring(prefix.length()), getStringOrStringList(key));
+      }
+    }
+    return values;
+  }
+
   void copyConfig(Map<String, String> to, String key) {
     String value = getStringOrStringList(key);
     String kafkaKey = key.replace(KAFKA_OVERRIDE_PREFIX,"");
@@ -14,9 +14,12 @@
 package brave.kafka.interceptor;
 
 import brave.Span;
+import brave.Tracer;
 import brave.Tracing;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContextOrSamplingFlags;
+import brave.sampler.SamplerFunction;
+import java.util.ArrayList;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
@@ -27,93 +30,467 @@ import org.apache.kafka.clients.consumer.ConsumerRecords;
 import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
 import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.record.TimestampType;
 
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_COMMIT_SPANS_ENABLED_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_COMMIT_SPANS_ENABLED_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_LATENCY_ENABLED_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_LATENCY_ENABLED_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_PARTITION_IDLE_MS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_PARTITION_IDLE_MS_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_PENDING_SPANS_MAX_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_PENDING_SPANS_MAX_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_SPAN_FINISH_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_SPAN_FINISH_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.CONSUMER_SPAN_MODE_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.METRICS_ENABLED_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.METRICS_ENABLED_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.PROPAGATION_FORMAT_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.PROPAGATION_FORMAT_DEFAULT;
 import static brave.kafka.interceptor.TracingConfiguration.REMOTE_SERVICE_NAME_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.REMOTE_SERVICE_NAME_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.SIZE_TAGS_ENABLED_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.SIZE_TAGS_ENABLED_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.STREAMS_MODE_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.STREAMS_MODE_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.TOPICS_EXCLUDE_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.TOPICS_INCLUDE_CONFIG;
 
 /**
  * Record spans when records are received from Consumer API.
  * <p>
  * Creates a span per Record, and link it with an incoming context if stored in Records header.
+ * Records not sampled upstream, or by this interceptor, are left untouched and create no span.
+ * <p>
+ * When {@link SpanMode#PARTITION} or {@link SpanMode#POLL} is configured, a single span is created
+ * per topic-partition or per poll instead. Incoming contexts are then listed in the {@value
+ * KafkaInterceptorTagKey#KAFKA_LINKS} tag, and every record carries the batch span context.
+ * <p>
+ * Spans shared by records are finished on poll by default. When {@link SpanFinish#COMMIT} is
+ * configured, they are kept open until the offsets of their records are committed, to measure
+ * processing time. See {@link CommitSpans}.
+ * <p>
+ * When {@value TracingConfiguration#CONSUMER_COMMIT_SPANS_ENABLED_CONFIG} is enabled, commits are
+ * recorded as {@value #COMMIT_SPAN_NAME} spans tagged with the offsets committed. State kept per
+ * partition is dropped once the partition is neither consumed nor committed for a while, as after
+ * a rebalance: see {@link IdlePartitions}.
+ * <p>
+ * When {@value TracingConfiguration#CONSUMER_LATENCY_ENABLED_CONFIG} is enabled, spans are tagged
+ * with the latency since record timestamps, and latencies are recorded in {@link
+ * ConsumerLatencies}. When {@value TracingConfiguration#SIZE_TAGS_ENABLED_CONFIG} is enabled, they
+ * are tagged with serialized key, value and header sizes, summed for spans shared by records.
+ * <p>
+ * Records of topics excluded by {@link TopicFilter}, or of Kafka Streams internal topics skipped by
+ * {@link StreamsMode}, are left untouched, and their latencies are not recorded.
  */
 public class TracingConsumerInterceptor<K, V> implements ConsumerInterceptor<K, V> {
   static final String SPAN_NAME = "poll";
+  static final String COMMIT_SPAN_NAME = "commit";
+  /** Maximum amount of partition offsets listed on a commit span. */
+  static final int MAX_COMMIT_OFFSETS = 16;
 
   TracingConfiguration configuration;
   Tracing tracing;
+  SamplerFunction<String> topicSampler;
+  /** Null unless records are sampled by key. */
+  KeySampler keySampler;
+  /** Null when all topics are traced. */
+  TopicFilter topicFilter;
+  StreamsMode streamsMode = StreamsMode.NONE;
   String remoteServiceName;
+  SpanMode spanMode;
+  KafkaInterceptorTags tags;
   TraceContext.Injector<Headers> injector;
   TraceContext.Extractor<Headers> extractor;
+  String clientId;
+  boolean latencyEnabled;
+  boolean sizeTagsEnabled;
+  /** Null unless latencies are recorded. */
+  ConsumerLatencies latencies;
+  /** Shared spans per topic in {@link SpanMode#RECORD}, reused across polls. */
+  final Map<String, ConsumerBatch> topicBatches = new LinkedHashMap<>();
+  /** Span per topic-partition or per poll in other modes, reused across polls. */
+  ConsumerBatch batch;
+  /** Topics of the current poll in {@link SpanMode#POLL}, few enough for a list. */
+  final List<String> pollTopics = new ArrayList<>();
+  /** Null unless metrics are enabled. */
+  InterceptorMetrics metrics;
+  /** Null unless spans are finished on commit. */
+  CommitSpans commitSpans;
+  boolean commitSpansEnabled;
+  /** Null unless state is kept per partition. */
+  IdlePartitions idlePartitions;
+  final StringBuilder commitOffsets = new StringBuilder();
 
   @Override public ConsumerRecords<K, V> onConsume(ConsumerRecords<K, V> records) {
     if (records.isEmpty() || tracing.isNoop()) return records;
-    Map<String, Span> consumerSpansForTopic = new LinkedHashMap<>();
+    long start = metrics != null ? System.nanoTime() : 0L;
+    long now = latencyEnabled || idlePartitions != null ? System.currentTimeMillis() : 0L;
+    if (spanMode != SpanMode.RECORD) {
+      onConsumeBatch(records, now);
+    } else {
+      onConsumeRecords(records, now);
+    }
+    // consumers may not commit, or not often, so revoked partitions are also evicted here
+    if (idlePartitions != null) idlePartitions.evict(now, this::evict);
+    if (metrics != null) metrics.recordCall(start);
+    return records;
+  }
+
+  /** True for the "not sampled" decision of {@link KafkaInterceptorPropagation#sampledExtractor}. */
+  static boolean isNotSampledUpstream(TraceContextOrSamplingFlags extracted) {
+    return extracted.context() == null && Boolean.FALSE.equals(extracted.sampled());
+  }
+
+  /** Creates a span per record with an incoming context, and one per topic for the others. */
+  void onConsumeRecords(ConsumerRecords<K, V> records, long now) {
+    int recordsTraced = 0, spansCreated = 0;
     for (TopicPartition partition : records.partitions()) {
       String topic = partition.topic();
+      if (isSkipped(topic)) continue;
+      if (idlePartitions != null) idlePartitions.active(partition, now);
+      LatencyHistogram partitionLatencies = partitionLatencies(partition);
       List<ConsumerRecord<K, V>> recordsInPartition = records.records(partition);
       for (ConsumerRecord<K, V> record : recordsInPartition) {
+        long latency = latency(record, now, partitionLatencies);
         TraceContextOrSamplingFlags extracted = extractor.extract(record.headers());
+        // unsampled upstream: nothing to report, so headers are left as they are
+        if (isNotSampledUpstream(extracted)) continue;
+        if (keySampler != null) {
+          extracted = keySampler.sample(extracted, record.key());
+          if (Boolean.FALSE.equals(extracted.sampled())) continue;
+        }
         // If we extracted neither a trace context, nor request-scoped data
         // (extra),
         // make or reuse a span for this topic
         if (extracted.samplingFlags() != null && extracted.extra().isEmpty()) {
-          Span consumerSpanForTopic = consumerSpansForTopic.get(topic);
+          ConsumerBatch consumerSpanForTopic = topicBatches.get(topic);
           if (consumerSpanForTopic == null) {
-            consumerSpansForTopic.put(topic,
-              consumerSpanForTopic = tracing.tracer()
-                .nextSpan(extracted)
-                .name(SPAN_NAME)
-                .kind(Span.Kind.CONSUMER)
-                .remoteServiceName(remoteServiceName)
-                .tag(KafkaInterceptorTagKey.KAFKA_TOPIC, topic)
-                .tag(KafkaInterceptorTagKey.KAFKA_GROUP_ID,
-                  configuration.getString(ConsumerConfig.GROUP_ID_CONFIG))
-                .tag(KafkaInterceptorTagKey.KAFKA_CLIENT_ID,
-                  configuration.getString(ConsumerConfig.CLIENT_ID_CONFIG))
-                .start());
+            consumerSpanForTopic = new ConsumerBatch(latencyEnabled, sizeTagsEnabled);
+            topicBatches.put(topic, consumerSpanForTopic);
+          }
+          if (!consumerSpanForTopic.isStarted()) {
+            Span span = TopicSampler.nextSpan(tracing.tracer(), topicSampler, extracted, topic)
+              .name(SPAN_NAME)
+              .kind(Span.Kind.CONSUMER)
+              .remoteServiceName(remoteServiceName)
+              .tag(KafkaInterceptorTagKey.KAFKA_TOPIC, topic);
+            tags.tag(span);
+            consumerSpanForTopic.start(span.start());
+            if (!span.isNoop()) spansCreated++;
           }
+          consumerSpanForTopic.add(latency);
           // no need to remove propagation headers as we failed to extract
-          // anything
-          injector.inject(consumerSpanForTopic.context(), record.headers());
+          // anything, and no need to inject a span that won't be reported
+          if (!consumerSpanForTopic.span.isNoop()) {
+            if (sizeTagsEnabled) addSizes(consumerSpanForTopic, record);
+            injector.inject(consumerSpanForTopic.span.context(), record.headers());
+            recordsTraced++;
+          }
         } else { // we extracted request-scoped data, so cannot share a consumer
           // span.
-          Span span = tracing.tracer().nextSpan(extracted);
+          Span span = TopicSampler.nextSpan(tracing.tracer(), topicSampler, extracted, topic);
           if (!span.isNoop()) {
             span.name(SPAN_NAME)
               .kind(Span.Kind.CONSUMER)
               .remoteServiceName(remoteServiceName)
-              .tag(KafkaInterceptorTagKey.KAFKA_TOPIC, topic)
-              .tag(KafkaInterceptorTagKey.KAFKA_GROUP_ID,
-                configuration.getString(ConsumerConfig.GROUP_ID_CONFIG))
-              .tag(KafkaInterceptorTagKey.KAFKA_CLIENT_ID,
-                configuration.getString(ConsumerConfig.CLIENT_ID_CONFIG))
-              .start()
-              .finish(); // span won't be shared by other records
+              .tag(KafkaInterceptorTagKey.KAFKA_TOPIC, topic);
+            tags.tag(span);
+            if (latency >= 0L) {
+              span.tag(KafkaInterceptorTagKey.KAFKA_LATENCY, String.valueOf(latency));
+            }
+            if (sizeTagsEnabled) {
+              RecordSizes.tag(span, KafkaInterceptorTagKey.KAFKA_KEY_SIZE,
+                record.serializedKeySize());
+              RecordSizes.tag(span, KafkaInterceptorTagKey.KAFKA_VALUE_SIZE,
+                record.serializedValueSize());
+              RecordSizes.tag(span, KafkaInterceptorTagKey.KAFKA_HEADERS_SIZE,
+                RecordSizes.headersSize(record.headers()));
+            }
+            span.start().finish(); // span won't be shared by other records
+            spansCreated++;
+            recordsTraced++;
+            injector.inject(span.context(), record.headers());
           }
-          // remove prior propagation headers from the record
-          tracing.propagation().keys().forEach(key -> record.headers().remove(key));
-          injector.inject(span.context(), record.headers());
         }
       }
     }
-    consumerSpansForTopic.values().forEach(Span::finish);
-    return records;
+    for (Map.Entry<String, ConsumerBatch> topicBatch : topicBatches.entrySet()) {
+      if (!topicBatch.getValue().isStarted()) continue;
+      finishBatch(topicBatch.getValue(), records, topicBatch.getKey(), null);
+    }
+    if (metrics != null) metrics.traced(recordsTraced, spansCreated);
   }
 
-  @Override public void onCommit(Map<TopicPartition, OffsetAndMetadata> map) {
-    // Do nothing
+  /**
+   * Creates one span per topic-partition or per poll, depending on {@link #spanMode}. Partition
+   * spans are tagged with the offsets of their first and last records.
+   */
+  void onConsumeBatch(ConsumerRecords<K, V> records, long now) {
+    if (batch == null) batch = new ConsumerBatch(latencyEnabled, sizeTagsEnabled);
+    int recordsTraced = 0, spansCreated = 0;
+    pollTopics.clear();
+    for (TopicPartition partition : records.partitions()) {
+      if (isSkipped(partition.topic())) continue;
+      List<ConsumerRecord<K, V>> recordsInPartition = records.records(partition);
+      if (spanMode == SpanMode.PARTITION) {
+        batch.start(startBatchSpan(partition.topic())
+          .tag(KafkaInterceptorTagKey.KAFKA_PARTITION, String.valueOf(partition.partition())));
+        batch.offsets(recordsInPartition.get(0).offset(),
+          recordsInPartition.get(recordsInPartition.size() - 1).offset());
+      } else if (!batch.isStarted()) {
+        batch.start(startBatchSpan(pollTopic(records)));
+      }
+      if (!pollTopics.contains(partition.topic())) pollTopics.add(partition.topic());
+      if (idlePartitions != null) idlePartitions.active(partition, now);
+      LatencyHistogram partitionLatencies = partitionLatencies(partition);
+      if (batch.span.isNoop()) { // unsampled: only latencies are recorded
+        if (partitionLatencies != null) {
+          for (ConsumerRecord<K, V> record : recordsInPartition) {
+            latency(record, now, partitionLatencies);
+          }
+        }
+        if (spanMode == SpanMode.PARTITION) batch.finish();
+        continue;
+      }
+      for (ConsumerRecord<K, V> record : recordsInPartition) {
+        long latency = latency(record, now, partitionLatencies);
+        TraceContextOrSamplingFlags extracted = extractor.extract(record.headers());
+        // unsampled upstream: left untouched, as in RECORD mode
+        if (isNotSampledUpstream(extracted)) continue;
+        if (keySampler != null && keySampler.isNotSampled(extracted, record.key())) continue;
+        batch.add(latency);
+        if (sizeTagsEnabled) addSizes(batch, record);
+        TraceContext upstream = extracted.context();
+        if (upstream != null) batch.link(upstream);
+        injector.inject(batch.span.context(), record.headers());
+        recordsTraced++;
+      }
+      if (spanMode != SpanMode.PARTITION) continue;
+      if (batch.recordCount == 0) { // all records unsampled upstream or by key
+        batch.abandon();
+        continue;
+      }
+      spansCreated++;
+      finishBatch(batch, records, null, partition);
+    }
+    if (batch.isStarted()) { // POLL, unless all topics are skipped
+      if (batch.recordCount == 0) {
+        batch.abandon();
+      } else {
+        batch.span.tag(KafkaInterceptorTagKey.KAFKA_TOPIC, String.join(",", pollTopics));
+        spansCreated++;
+        finishBatch(batch, records, null, null);
+      }
+    }
+    if (metrics != null) metrics.traced(recordsTraced, spansCreated);
+  }
+
+  boolean isSkipped(String topic) {
+    return (topicFilter != null && !topicFilter.isTraced(topic))
+      || streamsMode.skipsOnConsume(topic);
+  }
+
+  /**
+   * Finishes the batch span, or with {@link SpanFinish#COMMIT} keeps it open until the records of
+   * this partition, of this topic, or of all topics when both are null, are committed.
+   */
+  void finishBatch(ConsumerBatch batch, ConsumerRecords<K, V> records, String topic,
+    TopicPartition partition) {
+    if (commitSpans == null) {
+      batch.finish();
+      return;
+    }
+    Span span = batch.detach();
+    if (span == null) return;
+    CommitSpans.Open open = CommitSpans.open(span);
+    if (partition != null) {
+      commitSpans.add(partition, lastOffset(records.records(partition)), open);
+    } else {
+      for (TopicPartition recordsPartition : records.partitions()) {
+        if (topic != null ? !topic.equals(recordsPartition.topic())
+          : isSkipped(recordsPartition.topic())) {
+          continue;
+        }
+        commitSpans.add(recordsPartition, lastOffset(records.records(recordsPartition)), open);
+      }
+    }
+    if (open.partitions == 0) span.finish();
+  }
+
+  static long lastOffset(List<? extends ConsumerRecord<?, ?>> records) {
+    return records.get(records.size() - 1).offset();
+  }
+
+  /** Adds sizes of a record to a batch, before trace headers are written. */
+  static void addSizes(ConsumerBatch batch, ConsumerRecord<?, ?> record) {
+    batch.addSizes(record.serializedKeySize(), record.serializedValueSize(),
+      RecordSizes.headersSize(record.headers()));
+  }
+
+  /** @return the only topic traced in these records, or null when there are several. */
+  String pollTopic(ConsumerRecords<K, V> records) {
+    String topic = null;
+    for (TopicPartition partition : records.partitions()) {
+      if (isSkipped(partition.topic())) continue;
+      if (topic == null) {
+        topic = partition.topic();
+      } else if (!topic.equals(partition.topic())) {
+        return null;
+      }
+    }
+    return topic;
+  }
+
+  /**
+   * Starts a new trace, sampled by topic, or by the tracing sampler when the topic is null. Batches
+   * are not part of the span in scope, if any, as polls are not caused by it.
+   */
+  Span startBatchSpan(String topic) {
+    Span span;
+    try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(null)) {
+      span = topic != null
+        ? tracing.tracer().nextSpan(topicSampler, topic)
+        : tracing.tracer().nextSpan();
+    }
+    span.name(SPAN_NAME)
+      .kind(Span.Kind.CONSUMER)
+      .remoteServiceName(remoteServiceName);
+    tags.tag(span);
+    if (topic != null) span.tag(KafkaInterceptorTagKey.KAFKA_TOPIC, topic);
+    return span.start();
+  }
+
+  /** @return null unless latencies are recorded. */
+  LatencyHistogram partitionLatencies(TopicPartition partition) {
+    return latencies != null ? latencies.partition(partition) : null;
+  }
+
+  /** @return time since the record timestamp, or -1 if unknown or latencies are not recorded. */
+  long latency(ConsumerRecord<K, V> record, long now, LatencyHistogram partitionLatencies) {
+    if (!latencyEnabled || record.timestampType() == TimestampType.NO_TIMESTAMP_TYPE
+      || record.timestamp() < 0L) {
+      return -1L;
+    }
+    long latency = Math.max(0L, now - record.timestamp());
+    if (partitionLatencies != null) partitionLatencies.record(latency);
+    return latency;
+  }
+
+  @Override public void onCommit(Map<TopicPartition, OffsetAndMetadata> offsets) {
+    if (commitSpans != null) commitSpans.committed(offsets);
+    if (commitSpansEnabled && !offsets.isEmpty()) commitSpan(offsets);
+    if (idlePartitions != null) {
+      long now = System.currentTimeMillis();
+      for (TopicPartition partition : offsets.keySet()) idlePartitions.active(partition, now);
+      idlePartitions.evict(now, this::evict);
+    }
+  }
+
+  /** Records a commit, tagged with the offsets committed. */
+  void commitSpan(Map<TopicPartition, OffsetAndMetadata> offsets) {
+    Span span = tracing.tracer().nextSpan();
+    if (span.isNoop()) return;
+    commitOffsets.setLength(0);
+    int count = 0;
+    for (Map.Entry<TopicPartition, OffsetAndMetadata> entry : offsets.entrySet()) {
+      if (isSkipped(entry.getKey().topic()) || entry.getValue() == null) continue;
+      if (count++ >= MAX_COMMIT_OFFSETS) continue;
+      if (commitOffsets.length() > 0) commitOffsets.append(',');
+      commitOffsets.append(entry.getKey()).append(':').append(entry.getValue().offset());
+    }
+    if (count == 0) {
+      span.abandon();
+      return;
+    }
+    span.name(COMMIT_SPAN_NAME)
+      .tag(KafkaInterceptorTagKey.KAFKA_COMMIT_PARTITIONS, String.valueOf(count))
+      .tag(KafkaInterceptorTagKey.KAFKA_COMMIT_OFFSETS, commitOffsets.toString());
+    tags.tag(span);
+    span.start().finish();
+  }
+
+  /** Drops state kept for a partition no longer consumed nor committed, or for its topic. */
+  void evict(TopicPartition partition) {
+    if (commitSpans != null) commitSpans.evict(partition);
+    if (latencies != null) latencies.remove(partition);
+    if (!topicBatches.isEmpty() && !idlePartitions.hasPartitionOf(partition.topic())) {
+      topicBatches.remove(partition.topic());
+    }
   }
 
   @Override public void close() {
-    tracing.close();
+    if (commitSpans != null) commitSpans.finishAll();
+    if (latencies != null) latencies.close();
+    if (metrics != null) metrics.close();
+    TracingRegistry.INSTANCE.release(tracing);
   }
 
   @Override public void configure(Map<String, ?> configs) {
     configuration = new TracingConfiguration(configs);
     remoteServiceName =
       configuration.getStringOrDefault(REMOTE_SERVICE_NAME_CONFIG, REMOTE_SERVICE_NAME_DEFAULT);
-    tracing = new TracingBuilder(configuration).build();
-    extractor = tracing.propagation().extractor(KafkaInterceptorPropagation.HEADER_GETTER);
-    injector = tracing.propagation().injector(KafkaInterceptorPropagation.HEADER_SETTER);
+    spanMode = SpanMode.valueOf(
+      configuration.getStringOrDefault(CONSUMER_SPAN_MODE_CONFIG, CONSUMER_SPAN_MODE_DEFAULT));
+    clientId = configuration.getString(ConsumerConfig.CLIENT_ID_CONFIG);
+    latencyEnabled = Boolean.parseBoolean(configuration.getStringOrDefault(
+      CONSUMER_LATENCY_ENABLED_CONFIG, CONSUMER_LATENCY_ENABLED_DEFAULT));
+    sizeTagsEnabled = Boolean.parseBoolean(
+      configuration.getStringOrDefault(SIZE_TAGS_ENABLED_CONFIG, SIZE_TAGS_ENABLED_DEFAULT));
+    SpanFinish spanFinish = SpanFinish.valueOf(
+      configuration.getStringOrDefault(CONSUMER_SPAN_FINISH_CONFIG, CONSUMER_SPAN_FINISH_DEFAULT));
+    if (spanFinish == SpanFinish.COMMIT) {
+      commitSpans = new CommitSpans(configuration.getIntOrDefault(
+        CONSUMER_PENDING_SPANS_MAX_CONFIG, CONSUMER_PENDING_SPANS_MAX_DEFAULT));
+    }
+    if (latencyEnabled) latencies = new ConsumerLatencies(clientId);
+    commitSpansEnabled = Boolean.parseBoolean(configuration.getStringOrDefault(
+      CONSUMER_COMMIT_SPANS_ENABLED_CONFIG, CONSUMER_COMMIT_SPANS_ENABLED_DEFAULT));
+    // spans per topic are kept in RECORD mode
+    if (commitSpans != null || latencies != null || spanMode == SpanMode.RECORD) {
+      idlePartitions = new IdlePartitions(configuration.getIntOrDefault(
+        CONSUMER_PARTITION_IDLE_MS_CONFIG, CONSUMER_PARTITION_IDLE_MS_DEFAULT));
+    }
+    topicFilter = TopicFilter.create(configuration.getList(TOPICS_INCLUDE_CONFIG),
+      configuration.getList(TOPICS_EXCLUDE_CONFIG));
+    streamsMode = StreamsMode.valueOf(
+      configuration.getStringOrDefault(STREAMS_MODE_CONFIG, STREAMS_MODE_DEFAULT));
+    tags = KafkaInterceptorTags.newBuilder()
+      .add(KafkaInterceptorTagKey.KAFKA_GROUP_ID,
+        configuration.getString(ConsumerConfig.GROUP_ID_CONFIG))
+      .add(KafkaInterceptorTagKey.KAFKA_CLIENT_ID, clientId)
+      .addAll(configuration.getTags())
+      .build();
+    tracing = TracingRegistry.INSTANCE.acquire(configuration);
+    topicSampler = TracingRegistry.INSTANCE.topicSampler(tracing);
+    keySampler = KeySampler.create(configuration);
+    if (Boolean.parseBoolean(
+      configuration.getStringOrDefault(METRICS_ENABLED_CONFIG, METRICS_ENABLED_DEFAULT))) {
+      metrics = new InterceptorMetrics(InterceptorMetrics.CONSUMER_JMX_PREFIX, "on-consume",
+        clientId, TracingRegistry.INSTANCE.reporterCounters(tracing));
+    }
+    extractor = KafkaInterceptorPropagation.sampledExtractor(
+      metrics != null ? metrics.extractFailures : null);
+    injector = KafkaInterceptorPropagation.injector(KafkaInterceptorPropagation.Format.valueOf(
+      configuration.getStringOrDefault(PROPAGATION_FORMAT_CONFIG, PROPAGATION_FORMAT_DEFAULT)));
+  }
+
+  /** When spans shared by records are finished. */
+  enum SpanFinish {
+    /** When records are consumed, so spans only cover the interceptor. */
+    POLL,
+    /** When offsets of all their records are committed, to measure processing time. */
+    COMMIT
+  }
+
+  /** Granularity of spans created on consumption. */
+  enum SpanMode {
+    /** A span per record with an incoming context, and one span per topic for the others. */
+    RECORD,
+    /** A span per topic-partition, tagged with the range of offsets consumed. */
+    PARTITION,
+    /** A span per poll. */
+    POLL
   }
 }
@@ -17,6 +17,7 @@ import brave.Span;
 import brave.Tracing;
 import brave.propagation.TraceContext;
 import brave.propagation.TraceContextOrSamplingFlags;
+import brave.sampler.SamplerFunction;
 import java.util.Map;
 import org.apache.kafka.clients.producer.ProducerConfig;
 import org.apache.kafka.clients.producer.ProducerInterceptor;
@@ -29,44 +30,99 @@ import org.apache.kafka.common.header.Headers;
  * <p>
  * Extract context from incoming Record, if exist injected in its header, and use it to link it to
  * the Span created by the interceptor.
+ * <p>
+ * Spans are finished on send by default. When {@link SpanFinish#ACK} is configured, they are kept
+ * open until the record is acknowledged, to measure produce latency, and tagged with its offset or
+ * the error. This only applies to topics whose records are all sent to an explicit partition: see
+ * {@link PendingSpans} for how acknowledgements are matched.
+ * <p>
+ * When {@value TracingConfiguration#SIZE_TAGS_ENABLED_CONFIG} is enabled, spans are tagged with key
+ * and value sizes estimated by {@link RecordSizes}, and the size of headers sent.
+ * <p>
+ * Records sent to topics excluded by {@link TopicFilter}, or to Kafka Streams internal topics
+ * skipped by {@link StreamsMode}, are left untouched.
  */
 public class TracingProducerInterceptor<K, V> implements ProducerInterceptor<K, V> {
   static final String SPAN_NAME = "send";
 
   TracingConfiguration configuration;
   Tracing tracing;
+  SamplerFunction<String> topicSampler;
+  /** Null unless records are sampled by key. */
+  KeySampler keySampler;
+  /** Null unless keys are tagged. */
+  KeyTag keyTag;
+  /** Null when all topics are traced. */
+  TopicFilter topicFilter;
+  StreamsMode streamsMode = StreamsMode.NONE;
+  boolean sizeTagsEnabled;
   String remoteServiceName;
+  KafkaInterceptorTags tags;
+  /** Null unless spans are finished on acknowledgement. */
+  PendingSpans pendingSpans;
   TraceContext.Injector<Headers> injector;
   TraceContext.Extractor<Headers> extractor;
+  /** Null unless metrics are enabled. */
+  InterceptorMetrics metrics;
 
   @Override public ProducerRecord<K, V> onSend(ProducerRecord<K, V> record) {
+    if (topicFilter != null && !topicFilter.isTraced(record.topic())) return record;
+    if (streamsMode.skipsOnSend(record.topic())) return record;
+    long start = metrics != null ? System.nanoTime() : 0L;
     TraceContextOrSamplingFlags traceContextOrSamplingFlags = extractor.extract(record.headers());
-    Span span = tracing.tracer().nextSpan(traceContextOrSamplingFlags);
-    tracing.propagation().keys().forEach(key -> record.headers().remove(key));
+    if (keySampler != null) {
+      traceContextOrSamplingFlags = keySampler.sample(traceContextOrSamplingFlags, record.key());
+    }
+    Span span = TopicSampler.nextSpan(tracing.tracer(), topicSampler, traceContextOrSamplingFlags,
+      record.topic());
     injector.inject(span.context(), record.headers());
     if (!span.isNoop()) {
-      if (record.key() instanceof String && !"".equals(record.key())) {
-        span.tag(KafkaInterceptorTagKey.KAFKA_KEY, record.key().toString());
-      }
+      if (keyTag != null) keyTag.tag(span, record.key());
+      span.tag(KafkaInterceptorTagKey.KAFKA_TOPIC, record.topic());
+      if (sizeTagsEnabled) tagSizes(span, record);
+      tags.tag(span);
       span
-        .tag(KafkaInterceptorTagKey.KAFKA_TOPIC, record.topic())
-        .tag(KafkaInterceptorTagKey.KAFKA_CLIENT_ID,
-          configuration.getString(ProducerConfig.CLIENT_ID_CONFIG))
         .name(SPAN_NAME)
         .kind(Span.Kind.PRODUCER)
         .remoteServiceName(remoteServiceName)
-        .start()
-        .finish();
+        .start();
+      if (pendingSpans == null) span.finish();
+      if (metrics != null) metrics.traced(1, 1);
     }
+    if (pendingSpans != null) pendingSpans.sent(record.topic(), record.partition(), span);
+    if (metrics != null) metrics.recordCall(start);
     return record;
   }
 
+  /** Tags estimated sizes, as records are not serialized yet, and headers as sent. */
+  static void tagSizes(Span span, ProducerRecord<?, ?> record) {
+    RecordSizes.tag(span, KafkaInterceptorTagKey.KAFKA_KEY_SIZE,
+      RecordSizes.estimatedSize(record.key()));
+    RecordSizes.tag(span, KafkaInterceptorTagKey.KAFKA_VALUE_SIZE,
+      RecordSizes.estimatedSize(record.value()));
+    RecordSizes.tag(span, KafkaInterceptorTagKey.KAFKA_HEADERS_SIZE,
+      RecordSizes.headersSize(record.headers()));
+  }
+
   @Override public void onAcknowledgement(RecordMetadata recordMetadata, Exception exception) {
-    // Do nothing
+    if (pendingSpans == null || recordMetadata == null) return;
+    if (topicFilter != null && !topicFilter.isTraced(recordMetadata.topic())) return;
+    if (streamsMode.skipsOnSend(recordMetadata.topic())) return;
+    int partition = recordMetadata.partition();
+    Span span = pendingSpans.acknowledged(recordMetadata.topic(), partition);
+    if (span == null) return;
+    span.tag(KafkaInterceptorTagKey.KAFKA_PARTITION, String.valueOf(partition));
+    if (recordMetadata.hasOffset()) {
+      span.tag(KafkaInterceptorTagKey.KAFKA_OFFSET, String.valueOf(recordMetadata.offset()));
+    }
+    if (exception != null) span.error(exception);
+    span.finish();
   }
 
   @Override public void close() {
-    tracing.close();
+    if (pendingSpans != null) pendingSpans.finishAll();
+    if (metrics != null) metrics.close();
+    TracingRegistry.INSTANCE.release(tracing);
   }
 
   @Override public void configure(Map<String, ?> configs) {
@@ -74,8 +130,53 @@ public class TracingProducerInterceptor<K, V> implements ProducerInterceptor<K,
     remoteServiceName =
       configuration.getStringOrDefault(TracingConfiguration.REMOTE_SERVICE_NAME_CONFIG,
         TracingConfiguration.REMOTE_SERVICE_NAME_DEFAULT);
-    tracing = new TracingBuilder(configuration).build();
-    extractor = tracing.propagation().extractor(KafkaInterceptorPropagation.HEADER_GETTER);
-    injector = tracing.propagation().injector(KafkaInterceptorPropagation.HEADER_SETTER);
+    SpanFinish spanFinish = SpanFinish.valueOf(configuration.getStringOrDefault(
+      TracingConfiguration.PRODUCER_SPAN_FINISH_CONFIG,
+      TracingConfiguration.PRODUCER_SPAN_FINISH_DEFAULT));
+    if (spanFinish == SpanFinish.ACK) {
+      pendingSpans = new PendingSpans(configuration.getIntOrDefault(
+        TracingConfiguration.PRODUCER_PENDING_SPANS_MAX_CONFIG,
+        TracingConfiguration.PRODUCER_PENDING_SPANS_MAX_DEFAULT));
+    }
+    topicFilter = TopicFilter.create(
+      configuration.getList(TracingConfiguration.TOPICS_INCLUDE_CONFIG),
+      configuration.getList(TracingConfiguration.TOPICS_EXCLUDE_CONFIG));
+    streamsMode = StreamsMode.valueOf(configuration.getStringOrDefault(
+      TracingConfiguration.STREAMS_MODE_CONFIG, TracingConfiguration.STREAMS_MODE_DEFAULT));
+    sizeTagsEnabled = Boolean.parseBoolean(configuration.getStringOrDefault(
+      TracingConfiguration.SIZE_TAGS_ENABLED_CONFIG,
+      TracingConfiguration.SIZE_TAGS_ENABLED_DEFAULT));
+    keyTag = KeyTag.create(KeyTag.Policy.valueOf(configuration.getStringOrDefault(
+        TracingConfiguration.PRODUCER_KEY_TAG_CONFIG,
+        TracingConfiguration.PRODUCER_KEY_TAG_DEFAULT)),
+      configuration.getIntOrDefault(TracingConfiguration.PRODUCER_KEY_TAG_MAX_LENGTH_CONFIG,
+        TracingConfiguration.PRODUCER_KEY_TAG_MAX_LENGTH_DEFAULT));
+    tags = KafkaInterceptorTags.newBuilder()
+      .add(KafkaInterceptorTagKey.KAFKA_CLIENT_ID,
+        configuration.getString(ProducerConfig.CLIENT_ID_CONFIG))
+      .addAll(configuration.getTags())
+      .build();
+    tracing = TracingRegistry.INSTANCE.acquire(configuration);
+    topicSampler = TracingRegistry.INSTANCE.topicSampler(tracing);
+    keySampler = KeySampler.create(configuration);
+    if (Boolean.parseBoolean(configuration.getStringOrDefault(
+      TracingConfiguration.METRICS_ENABLED_CONFIG, TracingConfiguration.METRICS_ENABLED_DEFAULT))) {
+      metrics = new InterceptorMetrics(InterceptorMetrics.PRODUCER_JMX_PREFIX, "on-send",
+        configuration.getString(ProducerConfig.CLIENT_ID_CONFIG),
+        TracingRegistry.INSTANCE.reporterCounters(tracing));
+    }
+    extractor =
+      KafkaInterceptorPropagation.extractor(metrics != null ? metrics.extractFailures : null);
+    injector = KafkaInterceptorPropagation.injector(KafkaInterceptorPropagation.Format.valueOf(
+      configuration.getStringOrDefault(TracingConfiguration.PROPAGATION_FORMAT_CONFIG,
+        TracingConfiguration.PROPAGATION_FORMAT_DEFAULT)));
+  }
+
+  /** When producer spans are finished. */
+  enum SpanFinish {
+    /** When the record is sent, so the span only covers the interceptor. */
+    SEND,
+    /** When the record is acknowledged, or fails to be sent. */
+    ACK
   }
 }
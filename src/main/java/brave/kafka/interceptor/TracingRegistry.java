@@ -0,0 +1,185 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Tracing;
+import brave.sampler.SamplerFunction;
+import brave.sampler.SamplerFunctions;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import org.apache.kafka.clients.CommonClientConfigs;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * JVM-wide registry of {@link Tracing} instances shared by interceptors.
+ * <p>
+ * Interceptors with the same effective tracing configuration (all {@code zipkin.*} properties
+ * except the ones scoped to a single interceptor, plus the client's {@code bootstrap.servers} used
+ * as fallback by the Kafka sender) share one {@link Tracing} and its reporting components.
+ * Instances are reference-counted and closed when the last interceptor using them is closed.
+ */
+final class TracingRegistry {
+  static final Logger LOGGER = LoggerFactory.getLogger(TracingRegistry.class);
+  static final String ZIPKIN_PREFIX = "zipkin.";
+  /** Properties only read by interceptors, not when building {@link Tracing}. */
+  static final List<String> INTERCEPTOR_CONFIG_PREFIXES = Arrays.asList(
+    TracingConfiguration.REMOTE_SERVICE_NAME_CONFIG,
+    TracingConfiguration.TAGS_PREFIX,
+    TracingConfiguration.PROPAGATION_FORMAT_CONFIG,
+    TracingConfiguration.METRICS_ENABLED_CONFIG,
+    "zipkin.consumer.",
+    "zipkin.producer.",
+    "zipkin.topics.",
+    TracingConfiguration.STREAMS_MODE_CONFIG,
+    TracingConfiguration.SAMPLER_KEY_CONFIG,
+    TracingConfiguration.SIZE_TAGS_ENABLED_CONFIG);
+
+  static final TracingRegistry INSTANCE = new TracingRegistry();
+
+  final Map<Map<String, String>, Entry> entries = new LinkedHashMap<>();
+
+  /** Returns a shared {@link Tracing} for this configuration, building it if needed. */
+  synchronized Tracing acquire(TracingConfiguration configuration) {
+    Map<String, String> key = key(configuration);
+    Entry entry = entries.get(key);
+    if (entry == null) {
+      entry = new Entry(new TracingBuilder(configuration));
+      entries.put(key, entry);
+      LOGGER.debug("Tracing instance created for {}", key);
+    }
+    entry.references++;
+    return entry.tracing;
+  }
+
+  /**
+   * Releases a {@link Tracing} obtained from {@link #acquire(TracingConfiguration)}, closing it
+   * and its reporting components when no interceptor references it anymore. Instances not managed
+   * by this registry are closed directly.
+   */
+  synchronized void release(Tracing tracing) {
+    for (Iterator<Entry> iterator = entries.values().iterator(); iterator.hasNext(); ) {
+      Entry entry = iterator.next();
+      if (entry.tracing != tracing) continue;
+      if (--entry.references == 0) {
+        iterator.remove();
+        entry.close();
+      }
+      return;
+    }
+    tracing.close();
+  }
+
+  /** @return the topic sampler built with this {@link Tracing}, deferring if unknown. */
+  synchronized SamplerFunction<String> topicSampler(Tracing tracing) {
+    for (Entry entry : entries.values()) {
+      if (entry.tracing == tracing) return entry.topicSampler;
+    }
+    return SamplerFunctions.deferDecision();
+  }
+
+  /** @return counters of the reporter built with this {@link Tracing}, null if none. */
+  synchronized ReporterCounters reporterCounters(Tracing tracing) {
+    for (Entry entry : entries.values()) {
+      if (entry.tracing != tracing) continue;
+      return entry.spanHandler != null ? entry.reporterCounters : null;
+    }
+    return null;
+  }
+
+  synchronized int size() {
+    return entries.size();
+  }
+
+  static Map<String, String> key(TracingConfiguration configuration) {
+    Map<String, String> key = new TreeMap<>();
+    for (String configKey : configuration.getKeySet()) {
+      if ((configKey.startsWith(ZIPKIN_PREFIX) && !isInterceptorConfig(configKey))
+        || configKey.equals(CommonClientConfigs.BOOTSTRAP_SERVERS_CONFIG)) {
+        key.put(configKey, String.valueOf(configuration.configs.get(configKey)));
+      }
+    }
+    return key;
+  }
+
+  static boolean isInterceptorConfig(String configKey) {
+    for (String prefix : INTERCEPTOR_CONFIG_PREFIXES) {
+      if (configKey.startsWith(prefix)) return true;
+    }
+    return false;
+  }
+
+  static final class Entry {
+    final Tracing tracing;
+    final LazySpanHandler spanHandler;
+    final AggregatingSpanHandler aggregatingSpanHandler;
+    final ReporterCounters reporterCounters;
+    final int closeTimeoutMs;
+    final SamplerFunction<String> topicSampler;
+    int references;
+
+    Entry(TracingBuilder builder) {
+      this.tracing = builder.build();
+      this.spanHandler = builder.spanHandler;
+      this.aggregatingSpanHandler = builder.aggregatingSpanHandler;
+      this.reporterCounters = builder.reporterCounters;
+      this.closeTimeoutMs = builder.closeTimeoutMs;
+      this.topicSampler = builder.topicSampler;
+    }
+
+    /**
+     * Closes tracing, then reports the last aggregates if any, sends spans still buffered by the
+     * reporter, waiting for at most the close timeout, and closes the reporter and the sender.
+     * Spans not sent in time are counted as lost. Nothing is sent when the reporter was never
+     * created.
+     */
+    void close() {
+      tracing.close();
+      if (spanHandler == null) return;
+      if (aggregatingSpanHandler != null) aggregatingSpanHandler.close();
+      if (!spanHandler.isInitialized()) {
+        spanHandler.close();
+        return;
+      }
+      long droppedBeforeClose = reporterCounters.spansDropped();
+      Thread flusher = new Thread(this::flush, "zipkin-reporter-close");
+      flusher.setDaemon(true);
+      flusher.start();
+      try {
+        flusher.join(closeTimeoutMs);
+      } catch (InterruptedException e) {
+        Thread.currentThread().interrupt();
+      }
+      spanHandler.close();
+      long lost = reporterCounters.spansDropped() - droppedBeforeClose;
+      if (lost > 0) {
+        reporterCounters.spansLostOnClose.add(lost);
+        LOGGER.warn("{} spans not sent before closing the reporter", lost);
+      }
+      LOGGER.debug("Tracing instance closed: {}", reporterCounters);
+    }
+
+    void flush() {
+      try {
+        spanHandler.flush();
+      } catch (RuntimeException e) { // closed after timeout, or sender failure
+        LOGGER.debug("Error flushing spans on close", e);
+      }
+    }
+  }
+}
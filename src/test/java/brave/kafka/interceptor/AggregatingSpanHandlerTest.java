@@ -0,0 +1,164 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Span;
+import brave.Tracing;
+import brave.handler.MutableSpan;
+import brave.handler.SpanHandler;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class AggregatingSpanHandlerTest {
+  List<MutableSpan> spans = Collections.synchronizedList(new ArrayList<>());
+  SpanHandler delegate = new SpanHandler() {
+    @Override public boolean end(TraceContext context, MutableSpan span, Cause cause) {
+      spans.add(span);
+      return true;
+    }
+  };
+  AggregatingSpanHandler handler = new AggregatingSpanHandler(delegate, 60_000L, true);
+  Tracing tracing = Tracing.newBuilder().localServiceName("orders-service")
+    .addSpanHandler(handler).build();
+  long nowMicros = System.currentTimeMillis() * 1000L;
+
+  @AfterEach void close() {
+    tracing.close();
+    handler.close();
+  }
+
+  @Test void shouldForwardExemplarAndReportAggregates() {
+    // When
+    send("orders", 100L, false);
+    send("orders", 200L, false);
+    send("orders", 300L, true);
+    // Then first and error spans are forwarded
+    assertThat(spans).hasSize(2);
+    // When
+    handler.flush();
+    // Then
+    assertThat(spans).hasSize(3);
+    MutableSpan aggregate = spans.get(2);
+    assertThat(aggregate.name()).isEqualTo(AggregatingSpanHandler.SPAN_NAME);
+    assertThat(aggregate.localServiceName()).isEqualTo("orders-service");
+    assertThat(aggregate.tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_TOPIC, "orders")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_AGGREGATE_KIND, "PRODUCER")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_AGGREGATE_COUNT, "3")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_AGGREGATE_ERRORS, "1")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_AGGREGATE_DURATION_MAX, "300");
+    // When nothing happened in the next interval
+    handler.flush();
+    // Then
+    assertThat(spans).hasSize(3);
+  }
+
+  @Test void shouldReportWhenIntervalElapsedWithoutTraffic() throws InterruptedException {
+    // Given
+    AggregatingSpanHandler handler = new AggregatingSpanHandler(delegate, 10L, true);
+    try (Tracing tracing = Tracing.newBuilder().addSpanHandler(handler).build()) {
+      tracing.tracer().nextSpan().name("send").kind(Span.Kind.PRODUCER)
+        .tag(KafkaInterceptorTagKey.KAFKA_TOPIC, "orders").start().finish();
+      // When no more span ends
+      long deadline = System.currentTimeMillis() + 10_000L;
+      while (spans.size() < 2 && System.currentTimeMillis() < deadline) Thread.sleep(10L);
+    } finally {
+      handler.close();
+    }
+    // Then
+    assertThat(spans).extracting(MutableSpan::name)
+      .containsExactly("send", AggregatingSpanHandler.SPAN_NAME);
+  }
+
+  @Test void shouldCountUnsampledSpansWithoutForwardingThem() {
+    // Given
+    try (Tracing tracing = Tracing.newBuilder().sampler(Sampler.NEVER_SAMPLE)
+      .addSpanHandler(handler).alwaysSampleLocal().build()) {
+      // When
+      tracing.tracer().nextSpan().name("send").kind(Span.Kind.PRODUCER)
+        .tag(KafkaInterceptorTagKey.KAFKA_TOPIC, "orders").start().finish();
+      tracing.tracer().nextSpan().name("commit").start().finish();
+    }
+    // Then
+    assertThat(spans).isEmpty();
+    // When
+    handler.flush();
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(spans.get(0).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_AGGREGATE_COUNT, "1");
+  }
+
+  @Test void shouldReport64BitTraceIdsUnlessEnabled() {
+    // Given
+    AggregatingSpanHandler handler = new AggregatingSpanHandler(delegate, 60_000L, false);
+    try (Tracing tracing = Tracing.newBuilder().addSpanHandler(handler).build()) {
+      tracing.tracer().nextSpan().name("send").kind(Span.Kind.PRODUCER)
+        .tag(KafkaInterceptorTagKey.KAFKA_TOPIC, "orders").start().finish();
+    } finally {
+      // When
+      handler.close();
+    }
+    // Then
+    assertThat(spans).extracting(MutableSpan::traceId).allMatch(id -> id.length() == 16);
+  }
+
+  @Test void shouldCountEverySpanOnceWhileReporting() throws InterruptedException {
+    // Given
+    int threads = 4, spansPerThread = 10_000;
+    CountDownLatch done = new CountDownLatch(threads);
+    for (int i = 0; i < threads; i++) {
+      new Thread(() -> {
+        for (int j = 0; j < spansPerThread; j++) send("orders", 100L, false);
+        done.countDown();
+      }).start();
+    }
+    // When intervals are reported while spans are recorded
+    while (done.getCount() > 0) handler.flush();
+    handler.flush();
+    // Then
+    long count = 0L;
+    synchronized (spans) {
+      for (MutableSpan span : spans) {
+        String aggregateCount = span.tag(KafkaInterceptorTagKey.KAFKA_AGGREGATE_COUNT);
+        if (aggregateCount != null) count += Long.parseLong(aggregateCount);
+      }
+    }
+    assertThat(count).isEqualTo((long) threads * spansPerThread);
+  }
+
+  @Test void shouldForwardSpansWithoutTopic() {
+    // When
+    tracing.tracer().nextSpan().name("commit").start().finish();
+    tracing.tracer().nextSpan().name("commit").start().finish();
+    // Then
+    assertThat(spans).hasSize(2);
+  }
+
+  void send(String topic, long durationMicros, boolean error) {
+    Span span = tracing.tracer().nextSpan().name("send").kind(Span.Kind.PRODUCER)
+      .tag(KafkaInterceptorTagKey.KAFKA_TOPIC, topic)
+      .start(nowMicros - durationMicros);
+    if (error) span.error(new IllegalStateException("timeout"));
+    span.finish(nowMicros);
+  }
+}
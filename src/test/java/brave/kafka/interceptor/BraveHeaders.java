@@ -0,0 +1,36 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.propagation.Propagation.Getter;
+import brave.propagation.Propagation.Setter;
+import org.apache.kafka.common.header.Header;
+import org.apache.kafka.common.header.Headers;
+
+/** String access to headers, for Brave propagation to check headers read and written. */
+final class BraveHeaders {
+  static final Setter<Headers, String> HEADER_SETTER = (carrier, key, value) -> {
+    carrier.remove(key);
+    carrier.add(key, value.getBytes(KafkaInterceptorPropagation.UTF_8));
+  };
+
+  static final Getter<Headers, String> HEADER_GETTER = (carrier, key) -> {
+    Header header = carrier.lastHeader(key);
+    if (header == null) return null;
+    return new String(header.value(), KafkaInterceptorPropagation.UTF_8);
+  };
+
+  BraveHeaders() {
+  }
+}
@@ -0,0 +1,92 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class CommitSpansTest extends BaseTracingTest {
+  TopicPartition partition0 = new TopicPartition("topic", 0);
+  TopicPartition partition1 = new TopicPartition("topic", 1);
+
+  @Test void shouldFinishSpansCommittedPastTheirLastRecord() {
+    // Given
+    CommitSpans commitSpans = new CommitSpans(4);
+    commitSpans.add(partition0, 9L, CommitSpans.open(tracing.tracer().nextSpan().start()));
+    commitSpans.add(partition0, 19L, CommitSpans.open(tracing.tracer().nextSpan().start()));
+    // When
+    commitSpans.committed(Collections.singletonMap(partition0, new OffsetAndMetadata(15L)));
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(commitSpans.size(partition0)).isEqualTo(1);
+  }
+
+  @Test void shouldWaitForAllPartitionsOfSpan() {
+    // Given
+    CommitSpans commitSpans = new CommitSpans(4);
+    CommitSpans.Open open = CommitSpans.open(tracing.tracer().nextSpan().start());
+    commitSpans.add(partition0, 0L, open);
+    commitSpans.add(partition1, 0L, open);
+    // When
+    commitSpans.committed(Collections.singletonMap(partition0, new OffsetAndMetadata(1L)));
+    // Then
+    assertThat(spans).isEmpty();
+    // When
+    Map<TopicPartition, OffsetAndMetadata> offsets = new LinkedHashMap<>();
+    offsets.put(partition0, new OffsetAndMetadata(1L));
+    offsets.put(partition1, new OffsetAndMetadata(1L));
+    commitSpans.committed(offsets);
+    // Then
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test void shouldStopWaitingForOldestSpanWhenFull() {
+    // Given
+    CommitSpans commitSpans = new CommitSpans(2);
+    // When
+    for (long offset = 0L; offset < 3L; offset++) {
+      commitSpans.add(partition0, offset, CommitSpans.open(tracing.tracer().nextSpan().start()));
+    }
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(commitSpans.size(partition0)).isEqualTo(2);
+    // When
+    commitSpans.finishAll();
+    // Then
+    assertThat(spans).hasSize(3);
+  }
+
+  @Test void shouldFinishSpansOfEvictedPartition() {
+    // Given
+    CommitSpans commitSpans = new CommitSpans(4);
+    CommitSpans.Open open = CommitSpans.open(tracing.tracer().nextSpan().start());
+    commitSpans.add(partition0, 0L, open);
+    commitSpans.add(partition1, 0L, open);
+    // When
+    commitSpans.evict(partition0);
+    // Then
+    assertThat(spans).isEmpty();
+    assertThat(commitSpans.size(partition0)).isZero();
+    // When
+    commitSpans.evict(partition1);
+    // Then
+    assertThat(spans).hasSize(1);
+  }
+}
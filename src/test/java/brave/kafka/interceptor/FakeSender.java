@@ -0,0 +1,47 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import zipkin2.Call;
+import zipkin2.codec.Encoding;
+import zipkin2.reporter.Sender;
+
+/** Sender keeping messages in memory. */
+final class FakeSender extends Sender {
+  final List<List<byte[]>> messages = new CopyOnWriteArrayList<>();
+  volatile boolean closed;
+
+  @Override public Encoding encoding() {
+    return Encoding.JSON;
+  }
+
+  @Override public int messageMaxBytes() {
+    return 500_000;
+  }
+
+  @Override public int messageSizeInBytes(List<byte[]> encodedSpans) {
+    return encoding().listSizeInBytes(encodedSpans);
+  }
+
+  @Override public Call<Void> sendSpans(List<byte[]> encodedSpans) {
+    messages.add(encodedSpans);
+    return Call.create(null);
+  }
+
+  @Override public void close() {
+    closed = true;
+  }
+}
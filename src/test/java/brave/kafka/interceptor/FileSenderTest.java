@@ -0,0 +1,153 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import zipkin2.codec.Encoding;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class FileSenderTest {
+  @TempDir Path directory;
+
+  @Test void shouldWriteAndRecoverMessages() throws IOException {
+    // Given
+    try (FileSender sender = new FileSender(Encoding.JSON, directory, 1024, 4096, null, 10)) {
+      // When
+      sender.sendSpans(spans("a", "bb")).execute();
+      sender.sendSpans(spans("ccc")).execute();
+    }
+    // Then
+    try (FileSender sender = new FileSender(Encoding.JSON, directory, 1024, 4096, null, 10)) {
+      assertThat(strings(sender.nextToForward())).containsExactly("a", "bb");
+      sender.forwarded();
+      assertThat(strings(sender.nextToForward())).containsExactly("ccc");
+      sender.forwarded();
+      assertThat(sender.nextToForward()).isNull();
+      // appends after recovered messages
+      sender.sendSpans(spans("d")).execute();
+      assertThat(strings(sender.nextToForward())).containsExactly("d");
+    }
+  }
+
+  @Test void shouldEvictOldestSegmentsWhenFull() throws IOException {
+    // Given
+    byte[] span = new byte[600];
+    try (FileSender sender = new FileSender(Encoding.JSON, directory, 1024, 2048, null, 10)) {
+      // When
+      for (int i = 0; i < 3; i++) {
+        sender.sendSpans(Arrays.asList(span)).execute();
+      }
+      // Then
+      assertThat(sender.segmentsEvicted).hasValue(1);
+      assertThat(segmentFiles()).hasSize(2);
+    }
+  }
+
+  @Test void shouldRejectMessageLargerThanSegment() throws IOException {
+    // Given
+    try (FileSender sender = new FileSender(Encoding.JSON, directory, 1024, 4096, null, 10)) {
+      // When / Then
+      assertThatThrownBy(() -> sender.sendSpans(Arrays.asList(new byte[1024])).execute())
+        .isInstanceOf(IllegalArgumentException.class);
+    }
+  }
+
+  @Test void shouldComputeSizeOfSingleSpanMessage() throws IOException {
+    try (FileSender sender = new FileSender(Encoding.JSON, directory, 1024, 4096, null, 10)) {
+      assertThat(sender.messageSizeInBytes(100))
+        .isEqualTo(sender.messageSizeInBytes(Arrays.asList(new byte[100])));
+    }
+  }
+
+  @Test void shouldLockDirectory() throws IOException {
+    // Given
+    try (FileSender ignored = new FileSender(Encoding.JSON, directory, 1024, 4096, null, 10)) {
+      // When / Then
+      assertThatThrownBy(() -> new FileSender(Encoding.JSON, directory, 1024, 4096, null, 10))
+        .isInstanceOf(IllegalStateException.class);
+    }
+  }
+
+  @Test void shouldForwardAndRecycleSegments() throws Exception {
+    // Given
+    FakeSender forwardTo = new FakeSender();
+    byte[] span = new byte[600];
+    try (FileSender sender = new FileSender(Encoding.JSON, directory, 1024, 4096, forwardTo, 10)) {
+      for (int i = 1; i <= 5; i++) {
+        // When
+        sender.sendSpans(Arrays.asList(span)).execute();
+        // Then
+        awaitMessages(forwardTo, i);
+      }
+      // forwarded segments are written again rather than deleted while still mapped
+      assertThat(segmentFiles()).hasSize(2);
+      assertThat(sender.segmentsEvicted).hasValue(0);
+    }
+    assertThat(forwardTo.closed).isTrue();
+  }
+
+  @Test void shouldResumeForwardingAfterRestart() throws Exception {
+    // Given
+    FakeSender forwardTo = new FakeSender();
+    try (FileSender sender = new FileSender(Encoding.JSON, directory, 1024, 4096, forwardTo, 10)) {
+      sender.sendSpans(spans("a")).execute();
+      sender.sendSpans(spans("b")).execute();
+      awaitMessages(forwardTo, 2);
+    }
+    // When
+    FakeSender restarted = new FakeSender();
+    try (FileSender sender = new FileSender(Encoding.JSON, directory, 1024, 4096, restarted, 10)) {
+      sender.sendSpans(spans("c")).execute();
+      awaitMessages(restarted, 1);
+    }
+    // Then messages forwarded before the restart are not sent again
+    assertThat(strings(restarted.messages.get(0))).containsExactly("c");
+  }
+
+  static void awaitMessages(FakeSender sender, int count) throws InterruptedException {
+    long deadline = System.currentTimeMillis() + 5000;
+    while (sender.messages.size() < count && System.currentTimeMillis() < deadline) {
+      Thread.sleep(10);
+    }
+    assertThat(sender.messages).hasSize(count);
+  }
+
+  static List<byte[]> spans(String... spans) {
+    return Stream.of(spans).map(s -> s.getBytes(StandardCharsets.UTF_8))
+      .collect(Collectors.toList());
+  }
+
+  static List<String> strings(List<byte[]> spans) {
+    return spans.stream().map(s -> new String(s, StandardCharsets.UTF_8))
+      .collect(Collectors.toList());
+  }
+
+  List<Path> segmentFiles() throws IOException {
+    try (Stream<Path> files = Files.list(directory)) {
+      return files.filter(p -> p.getFileName().toString().endsWith(FileSender.SEGMENT_SUFFIX))
+        .collect(Collectors.toList());
+    }
+  }
+}
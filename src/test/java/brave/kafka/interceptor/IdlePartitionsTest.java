@@ -0,0 +1,63 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.ArrayList;
+import java.util.List;
+import org.apache.kafka.common.TopicPartition;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class IdlePartitionsTest {
+  TopicPartition partition0 = new TopicPartition("topic", 0);
+  TopicPartition partition1 = new TopicPartition("topic", 1);
+
+  @Test void shouldEvictPartitionsIdleForLongerThanIdleTime() {
+    // Given
+    IdlePartitions idlePartitions = new IdlePartitions(100L);
+    idlePartitions.active(partition0, 1000L);
+    idlePartitions.active(partition1, 1000L);
+    idlePartitions.active(partition1, 1050L);
+    List<TopicPartition> evicted = new ArrayList<>();
+    // When
+    idlePartitions.evict(1120L, evicted::add);
+    // Then
+    assertThat(evicted).containsExactly(partition0);
+    // When
+    evicted.clear();
+    idlePartitions.evict(1120L, evicted::add);
+    // Then
+    assertThat(evicted).isEmpty();
+    assertThat(idlePartitions.lastActiveMs).containsOnlyKeys(partition1);
+    assertThat(idlePartitions.nextEvictionMs).isEqualTo(1150L);
+  }
+
+  @Test void shouldNotScanBeforeAnyPartitionMayBeIdle() {
+    // Given
+    IdlePartitions idlePartitions = new IdlePartitions(100L);
+    idlePartitions.active(partition0, 1000L);
+    List<TopicPartition> evicted = new ArrayList<>();
+    // When
+    idlePartitions.evict(1100L, evicted::add);
+    // Then
+    assertThat(evicted).isEmpty();
+    assertThat(idlePartitions.nextEvictionMs).isEqualTo(1100L);
+    // When
+    idlePartitions.evict(1101L, evicted::add);
+    // Then
+    assertThat(evicted).containsExactly(partition0);
+    assertThat(idlePartitions.nextEvictionMs).isEqualTo(Long.MAX_VALUE);
+  }
+}
@@ -0,0 +1,111 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import org.apache.kafka.common.MetricName;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class InterceptorMetricsTest {
+  ReporterCounters reporterCounters = new ReporterCounters();
+  InterceptorMetrics metrics = new InterceptorMetrics(InterceptorMetrics.PRODUCER_JMX_PREFIX,
+    "on-send", "client-1", reporterCounters);
+
+  @AfterEach void close() {
+    metrics.close();
+  }
+
+  @Test void shouldCountTracedRecordsAndSpans() {
+    // When
+    metrics.traced(3, 1);
+    metrics.traced(2, 0);
+    // Then
+    assertThat(value(metrics, "records-traced-total")).isEqualTo(5.0);
+    assertThat(value(metrics, "spans-created-total")).isEqualTo(1.0);
+    // When the sample window elapsed
+    metrics.window(metrics.windowStartMs + metrics.windowMs);
+    // Then
+    assertThat(metrics.recordsTracedRate).isEqualTo(5000.0 / metrics.windowMs);
+  }
+
+  @Test void shouldMeasureCallTime() {
+    // Given
+    metrics.recordCall(System.nanoTime() - 1000L);
+    metrics.recordCall(System.nanoTime() - 3000L);
+    long now = metrics.windowStartMs + metrics.windowMs;
+    // When
+    metrics.window(now);
+    // Then
+    assertThat(metrics.averageTimeNanos).isGreaterThanOrEqualTo(2000.0);
+    assertThat(metrics.windowMaxTimeNanos).isGreaterThanOrEqualTo(3000.0);
+    assertThat(metrics.callRate).isEqualTo(2000.0 / metrics.windowMs);
+    // When read again within the next window
+    double max = metrics.windowMaxTimeNanos;
+    metrics.window(now + 1L);
+    // Then readers see the same values
+    assertThat(metrics.windowMaxTimeNanos).isEqualTo(max);
+    // When the next window elapsed without calls
+    metrics.window(now + metrics.windowMs);
+    // Then
+    assertThat(metrics.averageTimeNanos).isZero();
+    assertThat(metrics.windowMaxTimeNanos).isZero();
+  }
+
+  @Test void shouldExposeReporterCounters() {
+    // When
+    reporterCounters.incrementSpansDropped(2);
+    reporterCounters.updateQueuedSpans(7);
+    // Then
+    assertThat(value(metrics, "reporter-spans-dropped-total")).isEqualTo(2.0);
+    assertThat(value(metrics, "reporter-queued-spans")).isEqualTo(7.0);
+  }
+
+  @Test void shouldTagMetricsWithClientId() {
+    MetricName name = metrics.name("records-traced-total", "");
+    assertThat(name.tags()).containsEntry("client-id", "client-1");
+  }
+
+  @Test void shouldTagMetricsWithUniqueClientId() {
+    // Given
+    InterceptorMetrics same = new InterceptorMetrics(InterceptorMetrics.PRODUCER_JMX_PREFIX,
+      "on-send", "client-1", null);
+    InterceptorMetrics unknown = new InterceptorMetrics(InterceptorMetrics.PRODUCER_JMX_PREFIX,
+      "on-send", null, null);
+    InterceptorMetrics consumer = new InterceptorMetrics(InterceptorMetrics.CONSUMER_JMX_PREFIX,
+      "on-consume", "client-1", null);
+    // Then
+    assertThat(same.name("records-traced-total", "").tags())
+      .containsEntry("client-id", "client-1-2");
+    assertThat(unknown.name("records-traced-total", "").tags())
+      .containsEntry("client-id", InterceptorMetrics.UNKNOWN_CLIENT_ID);
+    assertThat(consumer.name("records-traced-total", "").tags())
+      .containsEntry("client-id", "client-1");
+    // When
+    same.close();
+    unknown.close();
+    consumer.close();
+    // Then names are released
+    assertThat(InterceptorMetrics.REGISTERED).doesNotContain(
+      InterceptorMetrics.PRODUCER_JMX_PREFIX + ":client-1-2",
+      InterceptorMetrics.PRODUCER_JMX_PREFIX + ":" + InterceptorMetrics.UNKNOWN_CLIENT_ID,
+      InterceptorMetrics.CONSUMER_JMX_PREFIX + ":client-1");
+  }
+
+  static double value(InterceptorMetrics metrics, String name) {
+    MetricName metricName = metrics.metrics.metricName(name, InterceptorMetrics.GROUP);
+    return (double) metrics.metrics.metric(metricName).metricValue();
+  }
+}
@@ -0,0 +1,287 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.propagation.B3Propagation;
+import brave.propagation.Propagation;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import org.apache.kafka.common.header.Headers;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.junit.jupiter.api.Test;
+
+import static brave.kafka.interceptor.BraveHeaders.HEADER_GETTER;
+import static brave.kafka.interceptor.BraveHeaders.HEADER_SETTER;
+import static brave.kafka.interceptor.KafkaInterceptorPropagation.EXTRACTOR;
+import static brave.kafka.interceptor.KafkaInterceptorPropagation.INJECTOR;
+import static brave.kafka.interceptor.KafkaInterceptorPropagation.UTF_8;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KafkaInterceptorPropagationTest {
+  Propagation<String> b3 = B3Propagation.FACTORY.get();
+  TraceContext context = TraceContext.newBuilder()
+    .traceIdHigh(0x463ac35c9f6413adL)
+    .traceId(0x48485a3953bb6124L)
+    .parentId(0x0020000000000001L)
+    .spanId(0xa2fb4a1d1a96d312L)
+    .sampled(true)
+    .build();
+  Headers headers = new RecordHeaders();
+
+  @Test void shouldInjectAsBrave() {
+    // Given
+    Headers braveHeaders = new RecordHeaders();
+    b3.injector(HEADER_SETTER).inject(context, braveHeaders);
+    // When
+    INJECTOR.inject(context, headers);
+    // Then
+    assertThat(headers.toArray()).containsExactlyInAnyOrder(braveHeaders.toArray());
+  }
+
+  @Test void shouldReplacePropagationHeadersOnInject() {
+    // Given
+    headers.add("other", "v".getBytes(UTF_8));
+    headers.add("b3", "1".getBytes(UTF_8));
+    headers.add("X-B3-Flags", "1".getBytes(UTF_8));
+    INJECTOR.inject(TraceContext.newBuilder().traceId(1L).spanId(2L).build(), headers);
+    // When
+    INJECTOR.inject(context, headers);
+    // Then
+    assertThat(headers.toArray()).hasSize(5);
+    assertThat(headers.lastHeader("other")).isNotNull();
+    assertThat(headers.lastHeader("b3")).isNull();
+    assertThat(EXTRACTOR.extract(headers).context()).isEqualTo(context);
+  }
+
+  @Test void shouldExtractMultiFormat() {
+    // Given
+    b3.injector(HEADER_SETTER).inject(context, headers);
+    // When
+    TraceContextOrSamplingFlags extracted = EXTRACTOR.extract(headers);
+    // Then
+    assertThat(extracted).isEqualTo(b3.extractor(HEADER_GETTER).extract(headers));
+    assertThat(extracted.context().parentIdAsLong()).isEqualTo(context.parentIdAsLong());
+    assertThat(extracted.sampled()).isTrue();
+  }
+
+  @Test void shouldExtractSingleFormat() {
+    // Given
+    headers.add("b3", (context.traceIdString() + "-" + context.spanIdString() + "-d-"
+      + context.parentIdString()).getBytes(UTF_8));
+    // When
+    TraceContextOrSamplingFlags extracted = EXTRACTOR.extract(headers);
+    // Then
+    assertThat(extracted).isEqualTo(b3.extractor(HEADER_GETTER).extract(headers));
+    assertThat(extracted.context().debug()).isTrue();
+    assertThat(extracted.context().parentIdAsLong()).isEqualTo(context.parentIdAsLong());
+  }
+
+  @Test void shouldExtractSingleFormat64Bit() {
+    // Given
+    headers.add("b3", "48485a3953bb6124-a2fb4a1d1a96d312-0".getBytes(UTF_8));
+    // When
+    TraceContextOrSamplingFlags extracted = EXTRACTOR.extract(headers);
+    // Then
+    assertThat(extracted).isEqualTo(b3.extractor(HEADER_GETTER).extract(headers));
+    assertThat(extracted.context().traceIdHigh()).isZero();
+    assertThat(extracted.sampled()).isFalse();
+  }
+
+  @Test void shouldExtractSamplingFlagsOnly() {
+    headers.add("b3", "0".getBytes(UTF_8));
+    assertThat(EXTRACTOR.extract(headers)).isSameAs(TraceContextOrSamplingFlags.NOT_SAMPLED);
+
+    headers = new RecordHeaders();
+    headers.add("X-B3-Sampled", "true".getBytes(UTF_8));
+    assertThat(EXTRACTOR.extract(headers)).isSameAs(TraceContextOrSamplingFlags.SAMPLED);
+  }
+
+  @Test void shouldExtractLastHeader() {
+    // Given
+    headers.add("b3", "0".getBytes(UTF_8));
+    headers.add("b3", "1".getBytes(UTF_8));
+    // When
+    TraceContextOrSamplingFlags extracted = EXTRACTOR.extract(headers);
+    // Then
+    assertThat(extracted.sampled()).isTrue();
+  }
+
+  @Test void shouldExtractEmptyWhenMalformed() {
+    headers.add("X-B3-TraceId", "48485a3953bb612X".getBytes(UTF_8));
+    headers.add("X-B3-SpanId", "a2fb4a1d1a96d312".getBytes(UTF_8));
+    assertThat(EXTRACTOR.extract(headers)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+
+    headers = new RecordHeaders();
+    headers.add("X-B3-TraceId", "48485a3953bb6124".getBytes(UTF_8));
+    assertThat(EXTRACTOR.extract(headers)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test void shouldExtractMultiFormatIdsAsBrave() {
+    String[][] ids = {
+      {"1", "a2fb4a1d1a96d312", null}, // too short
+      {"48485a3953bb6124", "2", null},
+      {"12", "34", "56"}, // short IDs, as left-padded by Brave
+      {"a3ce929d0e0e4736", "2", "1"},
+      {"463ac35c9f6413ad48485a3953bb6124", "a2fb4a1d1a96d312", null},
+      {"3ac35c9f6413ad48485a3953bb6124", "a2fb4a1d1a96d312", null}, // 30 characters
+      {"463AC35C9F6413AD48485A3953BB6124", "a2fb4a1d1a96d312", null}, // upper-case
+      {"463ac35c9f6413ad48485a3953bb6124", "A2FB4A1D1A96D312", null},
+      {"463ac35c9f6413AD48485a3953bb6124", "a2fb4a1d1a96d312", null},
+      {"0463ac35c9f6413ad48485a3953bb6124", "a2fb4a1d1a96d312", null}, // 33 characters
+      {"48485a3953bb6124", "0a2fb4a1d1a96d312", null}, // 17 characters
+      {"48485a3953bb6124", "a2fb4a1d1a96d312", "X"},
+    };
+    for (String[] id : ids) {
+      // Given
+      Headers headers = new RecordHeaders();
+      headers.add("X-B3-TraceId", id[0].getBytes(UTF_8));
+      headers.add("X-B3-SpanId", id[1].getBytes(UTF_8));
+      if (id[2] != null) headers.add("X-B3-ParentSpanId", id[2].getBytes(UTF_8));
+      // When
+      TraceContextOrSamplingFlags extracted = EXTRACTOR.extract(headers);
+      // Then
+      assertThat(extracted).as(String.join(",", id[0], id[1], String.valueOf(id[2])))
+        .isEqualTo(b3.extractor(HEADER_GETTER).extract(headers));
+    }
+  }
+
+  @Test void shouldExtractSingleFormatIdsAsBrave() {
+    String[] values = {
+      "1-2", "a3ce929d0e0e4736-2-1", "463AC35C9F6413AD48485A3953BB6124-a2fb4a1d1a96d312",
+      "3ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-1",
+      "48485a3953bb6124-A2FB4A1D1A96D312-1",
+    };
+    for (String value : values) {
+      // Given
+      Headers headers = new RecordHeaders();
+      headers.add("b3", value.getBytes(UTF_8));
+      // When
+      TraceContextOrSamplingFlags extracted = EXTRACTOR.extract(headers);
+      // Then
+      assertThat(extracted).as(value).isEqualTo(b3.extractor(HEADER_GETTER).extract(headers));
+    }
+  }
+
+  @Test void shouldFallbackToMultiFormatWhenSingleFormatIsMalformed() {
+    // Given
+    b3.injector(HEADER_SETTER).inject(context, headers);
+    headers.add("b3", "not-b3".getBytes(UTF_8));
+    // When
+    TraceContextOrSamplingFlags extracted = EXTRACTOR.extract(headers);
+    // Then
+    assertThat(extracted.context()).isEqualTo(context);
+  }
+
+  @Test void shouldReadNotSampledDecision() {
+    assertThat(isNotSampled("b3", "0")).isTrue();
+    assertThat(isNotSampled("b3", "1")).isFalse();
+    assertThat(isNotSampled("b3", "48485a3953bb6124-a2fb4a1d1a96d312-0")).isTrue();
+    assertThat(isNotSampled("b3",
+      "463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-0-0020000000000001")).isTrue();
+    assertThat(isNotSampled("b3", "48485a3953bb6124-a2fb4a1d1a96d312-1")).isFalse();
+    assertThat(isNotSampled("b3", "48485a3953bb6124-a2fb4a1d1a96d312")).isFalse();
+    assertThat(isNotSampled("X-B3-Sampled", "0")).isTrue();
+    assertThat(isNotSampled("X-B3-Sampled", "False")).isTrue();
+    assertThat(isNotSampled("X-B3-Sampled", "1")).isFalse();
+    assertThat(isNotSampled(headers)).isFalse();
+  }
+
+  @Test void shouldNotReadNotSampledDecisionWhenDebug() {
+    headers.add("X-B3-Sampled", "0".getBytes(UTF_8));
+    headers.add("X-B3-Flags", "1".getBytes(UTF_8));
+    assertThat(isNotSampled(headers)).isFalse();
+  }
+
+  static boolean isNotSampled(String key, String value) {
+    Headers headers = new RecordHeaders();
+    headers.add(key, value.getBytes(UTF_8));
+    return isNotSampled(headers);
+  }
+
+  /** Whether the decision is read without parsing IDs. */
+  static boolean isNotSampled(Headers headers) {
+    return KafkaInterceptorPropagation.sampledExtractor(null).extract(headers)
+      == TraceContextOrSamplingFlags.NOT_SAMPLED;
+  }
+
+  @Test void shouldInjectAndExtractEachFormat() {
+    for (KafkaInterceptorPropagation.Format format : KafkaInterceptorPropagation.Format.values()) {
+      // Given
+      Headers headers = new RecordHeaders();
+      b3.injector(HEADER_SETTER).inject(context, headers);
+      // When
+      KafkaInterceptorPropagation.injector(format).inject(context, headers);
+      // Then
+      TraceContext extracted = EXTRACTOR.extract(headers).context();
+      assertThat(extracted.traceIdString()).isEqualTo(context.traceIdString());
+      assertThat(extracted.spanId()).isEqualTo(context.spanId());
+      assertThat(extracted.sampled()).isTrue();
+      if (format != KafkaInterceptorPropagation.Format.B3_MULTI) {
+        assertThat(headers.toArray()).hasSize(1);
+      }
+    }
+  }
+
+  @Test void shouldInjectSingleFormatWithoutParent() {
+    KafkaInterceptorPropagation.injector(KafkaInterceptorPropagation.Format.B3_SINGLE)
+      .inject(context, headers);
+    assertThat(HEADER_GETTER.get(headers, "b3"))
+      .isEqualTo("463ac35c9f6413ad48485a3953bb6124-a2fb4a1d1a96d312-1");
+  }
+
+  @Test void shouldInjectTraceparent() {
+    KafkaInterceptorPropagation.injector(KafkaInterceptorPropagation.Format.W3C)
+      .inject(context.toBuilder().traceIdHigh(0L).sampled(false).build(), headers);
+    assertThat(HEADER_GETTER.get(headers, "traceparent"))
+      .isEqualTo("00-000000000000000048485a3953bb6124-a2fb4a1d1a96d312-00");
+  }
+
+  @Test void shouldInjectBinary() {
+    KafkaInterceptorPropagation.injector(KafkaInterceptorPropagation.Format.BINARY)
+      .inject(context, headers);
+    byte[] binary = headers.lastHeader("b3b").value();
+    assertThat(binary).hasSize(26);
+    assertThat(binary[0]).isZero();
+    assertThat(binary[25]).isEqualTo((byte) 5);
+  }
+
+  @Test void shouldExtractTraceparent() {
+    // Given
+    headers.add("traceparent",
+      "00-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01".getBytes(UTF_8));
+    // When
+    TraceContext extracted = EXTRACTOR.extract(headers).context();
+    // Then
+    assertThat(extracted.traceIdString()).isEqualTo("0af7651916cd43dd8448eb211c80319c");
+    assertThat(extracted.spanIdString()).isEqualTo("b7ad6b7169203331");
+    assertThat(extracted.sampled()).isTrue();
+  }
+
+  @Test void shouldNotExtractMalformedTraceparent() {
+    headers.add("traceparent",
+      "ff-0af7651916cd43dd8448eb211c80319c-b7ad6b7169203331-01".getBytes(UTF_8));
+    assertThat(EXTRACTOR.extract(headers)).isSameAs(TraceContextOrSamplingFlags.EMPTY);
+  }
+
+  @Test void shouldReadNotSampledDecisionOfEachFormat() {
+    TraceContext notSampled = context.toBuilder().sampled(false).build();
+    for (KafkaInterceptorPropagation.Format format : KafkaInterceptorPropagation.Format.values()) {
+      Headers headers = new RecordHeaders();
+      KafkaInterceptorPropagation.injector(format).inject(notSampled, headers);
+      assertThat(isNotSampled(headers)).isTrue();
+      KafkaInterceptorPropagation.injector(format).inject(context, headers);
+      assertThat(isNotSampled(headers)).isFalse();
+    }
+  }
+}
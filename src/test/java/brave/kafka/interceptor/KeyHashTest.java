@@ -0,0 +1,57 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.nio.ByteBuffer;
+import org.apache.kafka.common.serialization.IntegerSerializer;
+import org.apache.kafka.common.serialization.LongSerializer;
+import org.apache.kafka.common.serialization.StringSerializer;
+import org.apache.kafka.common.utils.Bytes;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class KeyHashTest {
+
+  @Test void shouldHashStringsAsSerialized() {
+    StringSerializer serializer = new StringSerializer();
+    for (String key : new String[] {"", "order-42", "café", "€", "😀", "\ud83d"}) {
+      assertThat(KeyHash.hash(key)).isEqualTo(KeyHash.hash(serializer.serialize("topic", key)));
+    }
+  }
+
+  @Test void shouldHashNumbersAsSerialized() {
+    assertThat(KeyHash.hash(-42L))
+      .isEqualTo(KeyHash.hash(new LongSerializer().serialize("topic", -42L)));
+    assertThat(KeyHash.hash(42))
+      .isEqualTo(KeyHash.hash(new IntegerSerializer().serialize("topic", 42)));
+  }
+
+  @Test void shouldHashBuffersInPlace() {
+    // Given
+    ByteBuffer buffer = ByteBuffer.wrap(new byte[] {0, 1, 2, 3});
+    buffer.position(1);
+    // When
+    long hash = KeyHash.hash((Object) buffer);
+    // Then
+    assertThat(hash).isEqualTo(KeyHash.hash(new byte[] {1, 2, 3}))
+      .isEqualTo(KeyHash.hash(Bytes.wrap(new byte[] {1, 2, 3})));
+    assertThat(buffer.position()).isEqualTo(1);
+  }
+
+  @Test void shouldNotSupportOtherKeys() {
+    assertThat(KeyHash.isSupported(new Object())).isFalse();
+    assertThat(KeyHash.isSupported("key")).isTrue();
+  }
+}
@@ -0,0 +1,118 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.propagation.SamplingFlags;
+import brave.propagation.TraceContext;
+import brave.propagation.TraceContextOrSamplingFlags;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class KeySamplerTest {
+  TraceContextOrSamplingFlags empty = TraceContextOrSamplingFlags.EMPTY;
+
+  @Test void shouldSampleSameKeysOnEveryHop() {
+    // Given
+    KeySampler producer = KeySampler.create(KeySampler.Source.RECORD_KEY, 0.5F);
+    KeySampler consumer = KeySampler.create(KeySampler.Source.RECORD_KEY, 0.5F);
+    int sampled = 0;
+    for (int i = 0; i < 1000; i++) {
+      String key = "order-" + i;
+      // When
+      Boolean decision = producer.sample(empty, key).sampled();
+      // Then
+      assertThat(consumer.sample(empty, key.getBytes(KafkaInterceptorPropagation.UTF_8)).sampled())
+        .isEqualTo(decision);
+      if (decision) sampled++;
+    }
+    assertThat(sampled).isBetween(400, 600);
+  }
+
+  /** Decisions must not depend on the JVM, as with a random salt, to match across services. */
+  @Test void shouldMakeSameDecisionsInEveryJvm() {
+    KeySampler byKey = KeySampler.create(KeySampler.Source.RECORD_KEY, 0.5F);
+    assertThat(byKey.sample(empty, "order-1").sampled()).isTrue();
+    assertThat(byKey.sample(empty, "order-2").sampled()).isFalse();
+    assertThat(byKey.sample(empty, "order-3").sampled()).isFalse();
+    assertThat(byKey.sample(empty, "order-4").sampled()).isTrue();
+    KeySampler byTraceId = KeySampler.create(KeySampler.Source.TRACE_ID, 0.5F);
+    assertThat(byTraceId.isSampled(0x463ac35c9f6413adL)).isFalse();
+    assertThat(byTraceId.isSampled(12345678901234567L)).isTrue();
+    assertThat(byTraceId.isSampled(-1L)).isFalse();
+  }
+
+  @Test void shouldKeepIncomingDecision() {
+    KeySampler sampler = KeySampler.create(KeySampler.Source.RECORD_KEY, 0.0F);
+    TraceContextOrSamplingFlags extracted =
+      TraceContextOrSamplingFlags.create(SamplingFlags.SAMPLED);
+    assertThat(sampler.sample(extracted, "key").sampled()).isTrue();
+  }
+
+  @Test void shouldDeferWithoutKey() {
+    KeySampler sampler = KeySampler.create(KeySampler.Source.RECORD_KEY, 0.0F);
+    assertThat(sampler.sample(empty, null).sampled()).isNull();
+    assertThat(sampler.isNotSampled(empty, new Object())).isFalse();
+  }
+
+  @Test void shouldSampleByIncomingTraceId() {
+    // Given
+    KeySampler sampler = KeySampler.create(KeySampler.Source.TRACE_ID, 0.0F);
+    TraceContextOrSamplingFlags extracted = TraceContextOrSamplingFlags.create(
+      TraceContext.newBuilder().traceId(1L).spanId(2L).build());
+    // When
+    TraceContextOrSamplingFlags sampled = sampler.sample(extracted, "key");
+    // Then
+    assertThat(sampled.sampled()).isFalse();
+    assertThat(sampled.context().traceId()).isEqualTo(1L);
+    assertThat(sampler.sample(empty, "key").sampled()).isNull();
+  }
+
+  @Test void shouldNotCreateSamplerWhenDisabled() {
+    assertThat(KeySampler.create(KeySampler.Source.NONE, 1.0F)).isNull();
+  }
+
+  @Test void shouldReadDedicatedRate() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(TracingConfiguration.SAMPLER_KEY_CONFIG, "RECORD_KEY");
+    map.put(TracingConfiguration.SAMPLER_TYPE_CONFIG, "RATE_LIMITED");
+    map.put(TracingConfiguration.SAMPLER_RATE_CONFIG, "0.0");
+    // When
+    KeySampler sampler = KeySampler.create(new TracingConfiguration(map));
+    // Then the rate of new traces does not apply
+    assertThat(sampler.sample(empty, "key").sampled()).isTrue();
+  }
+
+  @Test void shouldClampRatesBelowBoundarySamplerPrecision() {
+    KeySampler sampler = KeySampler.create(KeySampler.Source.RECORD_KEY, 0.00001F);
+    assertThat(sampler).isNotNull();
+  }
+
+  @Test void shouldFailOnInvalidRate() {
+    Map<String, String> map = new HashMap<>();
+    map.put(TracingConfiguration.SAMPLER_KEY_CONFIG, "TRACE_ID");
+    map.put(TracingConfiguration.SAMPLER_KEY_RATE_CONFIG, "1.5");
+    assertThatThrownBy(() -> KeySampler.create(new TracingConfiguration(map)))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageContaining(TracingConfiguration.SAMPLER_KEY_RATE_CONFIG);
+    map.put(TracingConfiguration.SAMPLER_KEY_RATE_CONFIG, "half");
+    assertThatThrownBy(() -> KeySampler.create(new TracingConfiguration(map)))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageContaining(TracingConfiguration.SAMPLER_KEY_RATE_CONFIG);
+  }
+}
@@ -0,0 +1,71 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.nio.ByteBuffer;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class KeyTagTest extends BaseTracingTest {
+
+  @Test void shouldTagOnlyStringsByDefault() {
+    KeyTag keyTag = KeyTag.create(KeyTag.Policy.STRING, 4);
+    assertThat(keyTag.value("order-42")).isEqualTo("order-42");
+    assertThat(keyTag.value(42L)).isNull();
+    assertThat(keyTag.value(new byte[] {0x0a, (byte) 0xff})).isNull();
+  }
+
+  @Test void shouldTagStringsAndNumbers() {
+    KeyTag keyTag = KeyTag.create(KeyTag.Policy.RAW, 4);
+    assertThat(keyTag.value("order-42")).isEqualTo("order-42");
+    assertThat(keyTag.value(42L)).isEqualTo("42");
+    assertThat(keyTag.value(new byte[] {0x0a, (byte) 0xff})).isNull();
+    assertThat(keyTag.value(new Object())).isNull();
+  }
+
+  @Test void shouldTruncateKeys() {
+    KeyTag keyTag = KeyTag.create(KeyTag.Policy.TRUNCATED, 4);
+    assertThat(keyTag.value("order-42")).isEqualTo("orde");
+    assertThat(keyTag.value("abc😀")).isEqualTo("abc");
+    assertThat(keyTag.value(new byte[] {1, 2, 3})).isEqualTo("0102");
+    // Given
+    ByteBuffer buffer = ByteBuffer.wrap(new byte[] {1, 2, 3});
+    buffer.position(1);
+    // Then
+    assertThat(keyTag.value(buffer)).isEqualTo("0203");
+    assertThat(buffer.position()).isEqualTo(1);
+  }
+
+  @Test void shouldTagHashOfKeys() {
+    // Given
+    KeyTag keyTag = KeyTag.create(KeyTag.Policy.HASH, 0);
+    brave.Span span = tracing.tracer().nextSpan();
+    // When
+    keyTag.tag(span, "order-42");
+    span.finish();
+    // Then
+    assertThat(spans.get(0).tags())
+      .doesNotContainKey(KafkaInterceptorTagKey.KAFKA_KEY)
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_KEY_HASH,
+        String.format("%016x", KeyHash.hash("order-42")));
+  }
+
+  @Test void shouldNotCreateKeyTagWhenOff() {
+    assertThat(KeyTag.create(KeyTag.Policy.OFF, 64)).isNull();
+    assertThatThrownBy(() -> KeyTag.create(KeyTag.Policy.TRUNCATED, 0))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+}
@@ -0,0 +1,81 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.within;
+
+class LatencyHistogramTest {
+  LatencyHistogram histogram = new LatencyHistogram();
+
+  @Test void shouldReturnUnknownWhenEmpty() {
+    assertThat(histogram.count()).isZero();
+    assertThat(histogram.min()).isEqualTo(-1L);
+    assertThat(histogram.max()).isEqualTo(-1L);
+    assertThat(histogram.valueAtPercentile(99)).isEqualTo(-1L);
+  }
+
+  @Test void shouldRecordValues() {
+    // When
+    for (long i = 1; i <= 1000; i++) histogram.record(i);
+    histogram.record(-1L);
+    // Then
+    assertThat(histogram.count()).isEqualTo(1000L);
+    assertThat(histogram.min()).isEqualTo(1L);
+    assertThat(histogram.max()).isEqualTo(1000L);
+    assertThat(histogram.mean()).isEqualTo(500.5);
+    assertThat((double) histogram.valueAtPercentile(50)).isCloseTo(500, within(500 * 0.125));
+    assertThat((double) histogram.valueAtPercentile(99)).isCloseTo(990, within(990 * 0.125));
+    assertThat(histogram.valueAtPercentile(100)).isEqualTo(1000L);
+  }
+
+  @Test void shouldAddOtherHistogram() {
+    // Given
+    LatencyHistogram other = new LatencyHistogram();
+    for (long i = 1; i <= 500; i++) histogram.record(i);
+    for (long i = 501; i <= 1000; i++) other.record(i);
+    // When
+    histogram.add(other);
+    // Then
+    assertThat(histogram.count()).isEqualTo(1000L);
+    assertThat(histogram.min()).isEqualTo(1L);
+    assertThat(histogram.max()).isEqualTo(1000L);
+    assertThat(histogram.mean()).isEqualTo(500.5);
+  }
+
+  @Test void shouldClearRecordedBuckets() {
+    // Given
+    for (long i = 100; i <= 200; i++) histogram.record(i);
+    // When
+    histogram.clear();
+    histogram.record(5L);
+    // Then
+    assertThat(histogram.count()).isEqualTo(1L);
+    assertThat(histogram.min()).isEqualTo(5L);
+    assertThat(histogram.valueAtPercentile(100)).isEqualTo(5L);
+    for (int i = 0; i < LatencyHistogram.BUCKETS; i++) {
+      assertThat(histogram.counts.get(i)).isEqualTo(i == 5 ? 1L : 0L);
+    }
+  }
+
+  @Test void shouldMapBucketsContiguously() {
+    for (int i = 0; i < LatencyHistogram.BUCKETS - 1; i++) {
+      assertThat(LatencyHistogram.index(LatencyHistogram.lowestValue(i))).isEqualTo(i);
+      assertThat(LatencyHistogram.index(LatencyHistogram.highestValue(i))).isEqualTo(i);
+    }
+    assertThat(LatencyHistogram.index(Long.MAX_VALUE)).isEqualTo(LatencyHistogram.BUCKETS - 1);
+  }
+}
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Tracing;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class LazySpanHandlerTest {
+  FakeSender fakeSender = new FakeSender();
+  AtomicInteger sendersCreated = new AtomicInteger();
+  ReporterCounters reporterCounters = new ReporterCounters();
+  LazySpanHandler spanHandler = new LazySpanHandler(() -> {
+    sendersCreated.incrementAndGet();
+    return fakeSender;
+  }, new TracingBuilder.ReporterBuilder(new TracingConfiguration(new HashMap<>())),
+    reporterCounters);
+
+  @Test void shouldCreateReporterWhenFirstSpanEnds() {
+    // Given
+    Tracing tracing = Tracing.newBuilder().addSpanHandler(spanHandler).build();
+    assertThat(spanHandler.isInitialized()).isFalse();
+    // When
+    tracing.tracer().nextSpan().start().finish();
+    tracing.tracer().nextSpan().start().finish();
+    spanHandler.flush();
+    // Then
+    assertThat(sendersCreated).hasValue(1);
+    assertThat(fakeSender.messages).hasSize(1);
+    assertThat(reporterCounters.spans()).isEqualTo(2L);
+    tracing.close();
+    spanHandler.close();
+    assertThat(fakeSender.closed).isTrue();
+  }
+
+  @Test void shouldNotCreateReporterWhenClosedBeforeFirstSpan() {
+    // When
+    spanHandler.close();
+    Tracing tracing = Tracing.newBuilder().addSpanHandler(spanHandler).build();
+    tracing.tracer().nextSpan().start().finish();
+    // Then
+    assertThat(sendersCreated).hasValue(0);
+    assertThat(fakeSender.closed).isFalse();
+    tracing.close();
+  }
+
+  @Test void shouldDropSpansWhenReporterCannotBeCreated() {
+    // Given
+    LazySpanHandler failing = new LazySpanHandler(() -> {
+      sendersCreated.incrementAndGet();
+      throw new IllegalArgumentException("invalid endpoint");
+    }, spanHandler.reporterBuilder, reporterCounters);
+    Tracing tracing = Tracing.newBuilder().addSpanHandler(failing).build();
+    // When
+    tracing.tracer().nextSpan().start().finish();
+    tracing.tracer().nextSpan().start().finish();
+    // Then
+    assertThat(sendersCreated).hasValue(1);
+    assertThat(reporterCounters.spansDropped()).isEqualTo(2L);
+    tracing.close();
+  }
+
+  @Test void shouldNotLockToDropSpansAfterFailure() throws InterruptedException {
+    // Given
+    LazySpanHandler failing = new LazySpanHandler(() -> {
+      throw new IllegalArgumentException("invalid endpoint");
+    }, spanHandler.reporterBuilder, reporterCounters);
+    Tracing tracing = Tracing.newBuilder().addSpanHandler(failing).build();
+    tracing.tracer().nextSpan().start().finish();
+    Thread thread = new Thread(() -> tracing.tracer().nextSpan().start().finish());
+    // When
+    synchronized (failing) {
+      thread.start();
+      thread.join(5000L);
+    }
+    // Then
+    assertThat(thread.isAlive()).isFalse();
+    assertThat(reporterCounters.spansDropped()).isEqualTo(2L);
+    tracing.close();
+  }
+}
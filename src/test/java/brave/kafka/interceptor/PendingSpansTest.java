@@ -0,0 +1,98 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Span;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class PendingSpansTest extends BaseTracingTest {
+
+  @Test void shouldRoundCapacityToPowerOfTwo() {
+    assertThat(new PendingSpans(1).capacity).isEqualTo(1);
+    assertThat(new PendingSpans(3).capacity).isEqualTo(4);
+    assertThat(new PendingSpans(1024).capacity).isEqualTo(1024);
+  }
+
+  @Test void shouldMatchAcknowledgementsInSendOrderPerPartition() {
+    // Given
+    PendingSpans pendingSpans = new PendingSpans(4);
+    Span first0 = tracing.tracer().nextSpan().start();
+    Span first1 = tracing.tracer().nextSpan().start();
+    Span second0 = tracing.tracer().nextSpan().start();
+    Span second1 = tracing.tracer().nextSpan().start();
+    pendingSpans.sent("topic", 0, first0);
+    pendingSpans.sent("topic", 1, first1);
+    pendingSpans.sent("topic", 0, second0);
+    pendingSpans.sent("topic", 1, second1);
+    // When partitions are acknowledged out of send order
+    assertThat(pendingSpans.acknowledged("topic", 1)).isSameAs(first1);
+    assertThat(pendingSpans.acknowledged("topic", 1)).isSameAs(second1);
+    assertThat(pendingSpans.acknowledged("topic", 0)).isSameAs(first0);
+    assertThat(pendingSpans.acknowledged("topic", 0)).isSameAs(second0);
+    // Then partitions never sent to have no span
+    assertThat(pendingSpans.acknowledged("topic", 2)).isNull();
+  }
+
+  @Test void shouldFinishSpansOfTopicsSentWithoutPartition() {
+    // Given
+    PendingSpans pendingSpans = new PendingSpans(4);
+    pendingSpans.sent("topic", 0, tracing.tracer().nextSpan().start());
+    pendingSpans.sent("other", 0, tracing.tracer().nextSpan().start());
+    // When
+    pendingSpans.sent("topic", null, tracing.tracer().nextSpan().start());
+    pendingSpans.sent("topic", 0, tracing.tracer().nextSpan().start());
+    // Then spans of that topic are finished, as its acknowledgements can't be matched
+    assertThat(spans).hasSize(3);
+    assertThat(pendingSpans.acknowledged("topic", 0)).isNull();
+    assertThat(pendingSpans.acknowledged("other", 0)).isNotNull();
+  }
+
+  @Test void shouldCountUnsampledSends() {
+    // Given
+    PendingSpans pendingSpans = new PendingSpans(4);
+    Span sampled = tracing.tracer().nextSpan().start();
+    pendingSpans.sent("topic", 0, null);
+    pendingSpans.sent("topic", 0, sampled);
+    // When / Then
+    assertThat(pendingSpans.acknowledged("topic", 0)).isNull();
+    assertThat(pendingSpans.acknowledged("topic", 0)).isSameAs(sampled);
+  }
+
+  @Test void shouldFinishOldestSpanWhenFull() {
+    // Given
+    PendingSpans pendingSpans = new PendingSpans(2);
+    pendingSpans.sent("topic", 0, tracing.tracer().nextSpan().start());
+    pendingSpans.sent("topic", 0, tracing.tracer().nextSpan().start());
+    // When
+    pendingSpans.sent("topic", 0, tracing.tracer().nextSpan().start());
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(pendingSpans.acknowledged("topic", 0)).isNull();
+    assertThat(pendingSpans.acknowledged("topic", 0)).isNotNull();
+    assertThat(pendingSpans.acknowledged("topic", 0)).isNotNull();
+  }
+
+  @Test void shouldFinishAll() {
+    // Given
+    PendingSpans pendingSpans = new PendingSpans(4);
+    pendingSpans.sent("topic", 0, tracing.tracer().nextSpan().start());
+    pendingSpans.sent("other", 1, tracing.tracer().nextSpan().start());
+    // When
+    pendingSpans.finishAll();
+    // Then
+    assertThat(spans).hasSize(2);
+  }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.nio.ByteBuffer;
+import org.apache.kafka.common.header.internals.RecordHeaders;
+import org.apache.kafka.common.utils.Bytes;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+class RecordSizesTest {
+
+  @Test void shouldEstimateSizeOfBinaryAndTextValues() {
+    assertThat(RecordSizes.estimatedSize(new byte[3])).isEqualTo(3);
+    assertThat(RecordSizes.estimatedSize(ByteBuffer.allocate(8).position(6))).isEqualTo(2);
+    assertThat(RecordSizes.estimatedSize(Bytes.wrap(new byte[4]))).isEqualTo(4);
+    assertThat(RecordSizes.estimatedSize("value")).isEqualTo(5);
+  }
+
+  @Test void shouldNotEstimateSizeOfOtherValues() {
+    assertThat(RecordSizes.estimatedSize(null)).isEqualTo(-1);
+    assertThat(RecordSizes.estimatedSize(42L)).isEqualTo(-1);
+  }
+
+  @Test void shouldSumHeaderKeysAndValues() {
+    // Given
+    RecordHeaders headers = new RecordHeaders();
+    headers.add("b3", new byte[10]);
+    headers.add("empty", null);
+    // When / Then
+    assertThat(RecordSizes.headersSize(headers)).isEqualTo(2 + 10 + 5);
+  }
+}
@@ -0,0 +1,83 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.regex.PatternSyntaxException;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TopicFilterTest {
+
+  @Test void shouldNotCreateWithoutEntries() {
+    assertThat(TopicFilter.create(null, null)).isNull();
+    assertThat(TopicFilter.create(Arrays.asList(" ", ""), Collections.emptyList())).isNull();
+  }
+
+  @Test void shouldExcludeLiteralsAndPatterns() {
+    // Given
+    TopicFilter filter =
+      TopicFilter.create(null, Arrays.asList("__consumer_offsets", " regex:.*-changelog"));
+    // When / Then
+    assertThat(filter.isTraced("orders")).isTrue();
+    assertThat(filter.isTraced("__consumer_offsets")).isFalse();
+    assertThat(filter.isTraced("app-store-changelog")).isFalse();
+    assertThat(filter.excluded.literals).containsExactly("__consumer_offsets");
+    assertThat(filter.decisions).containsOnlyKeys("orders", "__consumer_offsets",
+      "app-store-changelog");
+  }
+
+  @Test void shouldMatchLiteralsExactly() {
+    // Given
+    TopicFilter filter = TopicFilter.create(Arrays.asList("orders.v1", "logs."), null);
+    // When / Then
+    assertThat(filter.isTraced("orders.v1")).isTrue();
+    assertThat(filter.isTraced("orders-v1")).isFalse();
+    assertThat(filter.isTraced("logs-")).isFalse();
+  }
+
+  @Test void shouldIncludeUnlessExcluded() {
+    // Given
+    TopicFilter filter = TopicFilter.create(Collections.singletonList("regex:orders.*"),
+      Collections.singletonList("orders-internal"));
+    // When / Then
+    assertThat(filter.isTraced("orders-eu")).isTrue();
+    assertThat(filter.isTraced("orders-internal")).isFalse();
+    assertThat(filter.isTraced("payments")).isFalse();
+  }
+
+  @Test void shouldKeepCommasOfListedPatterns() {
+    // Given
+    Map<String, Object> configs = new HashMap<>();
+    configs.put(TracingConfiguration.TOPICS_INCLUDE_CONFIG,
+      Arrays.asList("regex:a{1,3}", "orders"));
+    // When
+    TopicFilter filter = TopicFilter.create(
+      new TracingConfiguration(configs).getList(TracingConfiguration.TOPICS_INCLUDE_CONFIG), null);
+    // Then
+    assertThat(filter.isTraced("aaa")).isTrue();
+    assertThat(filter.isTraced("orders")).isTrue();
+    assertThat(filter.isTraced("aaaa")).isFalse();
+  }
+
+  @Test void shouldRejectInvalidPattern() {
+    assertThatThrownBy(() -> TopicFilter.create(Collections.singletonList("regex:orders("), null))
+      .isInstanceOf(PatternSyntaxException.class);
+  }
+}
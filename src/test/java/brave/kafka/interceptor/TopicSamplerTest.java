@@ -0,0 +1,82 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.sampler.RateLimitingSampler;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
+
+class TopicSamplerTest {
+
+  @Test void shouldNotCreateWithoutRules() {
+    assertThat(TopicSampler.create(Collections.emptyMap())).isNull();
+  }
+
+  @Test void shouldSampleByTopic() {
+    // Given
+    Map<String, String> rates = new LinkedHashMap<>();
+    rates.put("orders", "1.0");
+    rates.put("logs-*", "0.0");
+    TopicSampler sampler = TopicSampler.create(rates);
+    // When / Then
+    assertThat(sampler.trySample("orders")).isTrue();
+    assertThat(sampler.trySample("logs-app")).isFalse();
+    assertThat(sampler.trySample("payments")).isNull();
+    assertThat(sampler.samplers).containsOnlyKeys("orders", "logs-app", "payments");
+  }
+
+  @Test void shouldApplyLongestPattern() {
+    // Given
+    Map<String, String> rates = new LinkedHashMap<>();
+    rates.put("*", "0.0");
+    rates.put("orders.*", "1.0");
+    rates.put("orders.eu*", "0.0");
+    TopicSampler sampler = TopicSampler.create(rates);
+    // When / Then
+    assertThat(sampler.trySample("orders.us")).isTrue();
+    assertThat(sampler.trySample("orders.eu-1")).isFalse();
+    assertThat(sampler.trySample("other")).isFalse();
+  }
+
+  @Test void shouldPreferLiteralTopicToPatternOfSameLength() {
+    // Given
+    Map<String, String> rates = new LinkedHashMap<>();
+    rates.put("a*", "0.0");
+    rates.put("ab", "1.0");
+    TopicSampler sampler = TopicSampler.create(rates);
+    // When / Then
+    assertThat(sampler.trySample("ab")).isTrue();
+  }
+
+  @Test void shouldNotTreatRegexCharactersAsPatterns() {
+    // Given
+    TopicSampler sampler = TopicSampler.create(Collections.singletonMap("orders.v1", "1.0"));
+    // When / Then
+    assertThat(sampler.trySample("orders-v1")).isNull();
+  }
+
+  @Test void shouldRateLimitTopics() {
+    assertThat(TopicSampler.sampler("logs", "10/s")).isInstanceOf(RateLimitingSampler.class);
+  }
+
+  @Test void shouldRejectInvalidRate() {
+    assertThatThrownBy(() -> TopicSampler.sampler("logs", "1.5"))
+      .isInstanceOf(IllegalArgumentException.class);
+  }
+}
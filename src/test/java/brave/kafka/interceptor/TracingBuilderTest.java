@@ -13,24 +13,51 @@
  */
 package brave.kafka.interceptor;
 
+import brave.Tracing;
+import brave.sampler.RateLimitingSampler;
 import brave.sampler.Sampler;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Map;
+import okhttp3.OkHttpClient;
 import org.apache.kafka.clients.CommonClientConfigs;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import zipkin2.codec.Encoding;
 import zipkin2.reporter.Sender;
+import zipkin2.reporter.brave.AsyncZipkinSpanHandler;
 import zipkin2.reporter.kafka.KafkaSender;
 import zipkin2.reporter.okhttp3.OkHttpSender;
 
+import static brave.kafka.interceptor.TracingConfiguration.AGGREGATE_ENABLED_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.ENCODING_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.ENCODING_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_DIRECTORY_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_FORWARD_SENDER_TYPE_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.FILE_SEGMENT_BYTES_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_COMPRESSION_ENABLED_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_CONNECT_TIMEOUT_MS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_MAX_REQUESTS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_MESSAGE_MAX_BYTES_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_READ_TIMEOUT_MS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.HTTP_WRITE_TIMEOUT_MS_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.KAFKA_BOOTSTRAP_SERVERS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_LAZY_ENABLED_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_MESSAGE_MAX_BYTES_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_MESSAGE_TIMEOUT_MS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_MESSAGE_TIMEOUT_MS_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_QUEUED_MAX_BYTES_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_QUEUED_MAX_SPANS_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_QUEUED_MAX_SPANS_DEFAULT;
 import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_RATE_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_RATE_DEFAULT;
+import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_TRACES_PER_SECOND_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.SAMPLER_TYPE_CONFIG;
 import static brave.kafka.interceptor.TracingConfiguration.SENDER_TYPE_CONFIG;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 class TracingBuilderTest {
 
@@ -55,6 +82,28 @@ class TracingBuilderTest {
     assertThat(encoding).isEqualTo(Encoding.PROTO3);
   }
 
+  @Test void shouldBuildEncodingIgnoringCase() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(ENCODING_CONFIG, "proto3");
+    TracingConfiguration config = new TracingConfiguration(map);
+    // When
+    Encoding encoding = new TracingBuilder.EncodingBuilder(config).build();
+    // Then
+    assertThat(encoding).isEqualTo(Encoding.PROTO3);
+  }
+
+  @Test void shouldRejectUnsupportedEncoding() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(ENCODING_CONFIG, Encoding.THRIFT.name());
+    TracingConfiguration config = new TracingConfiguration(map);
+    // When / Then
+    assertThatThrownBy(() -> new TracingBuilder.EncodingBuilder(config))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageContaining("PROTO3");
+  }
+
   @Test void shouldBuildDefaultSampler() {
     // Given
     Map<String, String> map = new HashMap<>();
@@ -88,6 +137,29 @@ class TracingBuilderTest {
     assertThat(sampler).isNotNull();
   }
 
+  @Test void shouldBuildRateLimitedSampler() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(SAMPLER_TYPE_CONFIG, "RATE_LIMITED");
+    map.put(SAMPLER_TRACES_PER_SECOND_CONFIG, "100");
+    TracingConfiguration config = new TracingConfiguration(map);
+    // When
+    Sampler sampler = new TracingBuilder.SamplerBuilder(config).build();
+    // Then
+    assertThat(sampler).isInstanceOf(RateLimitingSampler.class);
+  }
+
+  @Test void shouldBuildTopicSampler() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(TracingConfiguration.SAMPLER_TOPIC_PREFIX + "orders", "1.0");
+    TracingConfiguration config = new TracingConfiguration(map);
+    // When
+    TopicSampler sampler = new TracingBuilder.SamplerBuilder(config).buildTopicSampler();
+    // Then
+    assertThat(sampler.trySample("orders")).isTrue();
+  }
+
   @Test void shouldBuildNullSender() {
     // Given
     Map<String, String> map = new HashMap<>();
@@ -120,6 +192,68 @@ class TracingBuilderTest {
     assertThat(sender).isInstanceOf(OkHttpSender.class);
   }
 
+  @Test void shouldBuildHttpSenderWithConfig() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(SENDER_TYPE_CONFIG, TracingBuilder.SenderBuilder.SenderType.HTTP.name());
+    map.put(ENCODING_CONFIG, Encoding.PROTO3.name());
+    map.put(HTTP_COMPRESSION_ENABLED_CONFIG, "false");
+    map.put(HTTP_MESSAGE_MAX_BYTES_CONFIG, "1000000");
+    map.put(HTTP_MAX_REQUESTS_CONFIG, "4");
+    map.put(HTTP_CONNECT_TIMEOUT_MS_CONFIG, "1000");
+    map.put(HTTP_READ_TIMEOUT_MS_CONFIG, "2000");
+    map.put(HTTP_WRITE_TIMEOUT_MS_CONFIG, "3000");
+    TracingConfiguration config = new TracingConfiguration(map);
+    // When
+    Sender sender = new TracingBuilder.SenderBuilder(config).build();
+    // Then
+    assertThat(sender.encoding()).isEqualTo(Encoding.PROTO3);
+    assertThat(sender.messageMaxBytes()).isEqualTo(1000000);
+    assertThat(sender).extracting("compressionEnabled", "maxRequests").containsExactly(false, 4);
+    OkHttpClient client = ((OkHttpSender) sender).toBuilder().clientBuilder().build();
+    assertThat(client.connectTimeoutMillis()).isEqualTo(1000);
+    assertThat(client.readTimeoutMillis()).isEqualTo(2000);
+    assertThat(client.writeTimeoutMillis()).isEqualTo(3000);
+  }
+
+  @Test void shouldBuildFileSender(@TempDir Path directory) throws IOException {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(SENDER_TYPE_CONFIG, TracingBuilder.SenderBuilder.SenderType.FILE.name());
+    map.put(FILE_DIRECTORY_CONFIG, directory.toString());
+    map.put(FILE_SEGMENT_BYTES_CONFIG, "4096");
+    map.put(FILE_FORWARD_SENDER_TYPE_CONFIG, TracingBuilder.SenderBuilder.SenderType.HTTP.name());
+    TracingConfiguration config = new TracingConfiguration(map);
+    // When
+    Sender sender = new TracingBuilder.SenderBuilder(config).build();
+    // Then
+    try {
+      assertThat(sender).isInstanceOf(FileSender.class);
+      assertThat(((FileSender) sender).segmentBytes).isEqualTo(4096);
+      assertThat(((FileSender) sender).forwardTo).isInstanceOf(OkHttpSender.class);
+    } finally {
+      sender.close();
+    }
+  }
+
+  @Test void shouldValidateSenderSettingsBeforeBuildingSender() {
+    // Given
+    Map<String, String> fileMap = new HashMap<>();
+    fileMap.put(SENDER_TYPE_CONFIG, TracingBuilder.SenderBuilder.SenderType.FILE.name());
+    TracingConfiguration fileConfig = new TracingConfiguration(fileMap);
+    Map<String, String> httpMap = new HashMap<>();
+    httpMap.put(SENDER_TYPE_CONFIG, TracingBuilder.SenderBuilder.SenderType.HTTP.name());
+    httpMap.put(TracingConfiguration.HTTP_ENDPOINT_CONFIG, "not a url");
+    TracingConfiguration httpConfig = new TracingConfiguration(httpMap);
+    // When / Then
+    assertThatThrownBy(() -> new TracingBuilder.SenderBuilder(fileConfig))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageContaining(FILE_DIRECTORY_CONFIG);
+    assertThatThrownBy(() -> new TracingBuilder.SenderBuilder(httpConfig))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageContaining("not a url");
+  }
+
   @Test void shouldBuildKafkaSenderWithConfig() {
     // Given
     Map<String, String> map = new HashMap<>();
@@ -170,4 +304,104 @@ class TracingBuilderTest {
     // Then
     assertThat(sender).isInstanceOf(KafkaSender.class);
   }
+
+  @Test void shouldCreateReporterLazily() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(SENDER_TYPE_CONFIG, TracingBuilder.SenderBuilder.SenderType.HTTP.name());
+    TracingBuilder builder = new TracingBuilder(new TracingConfiguration(map));
+    // When
+    Tracing tracing = builder.build();
+    // Then
+    assertThat(builder.spanHandler.isInitialized()).isFalse();
+    tracing.close();
+    builder.spanHandler.close();
+  }
+
+  @Test void shouldAggregateSpansBeforeReporter() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(SENDER_TYPE_CONFIG, TracingBuilder.SenderBuilder.SenderType.HTTP.name());
+    map.put(AGGREGATE_ENABLED_CONFIG, "true");
+    TracingBuilder builder = new TracingBuilder(new TracingConfiguration(map));
+    // When
+    Tracing tracing = builder.build();
+    // Then
+    assertThat(builder.aggregatingSpanHandler.delegate).isSameAs(builder.spanHandler);
+    assertThat(builder.aggregatingSpanHandler.intervalMs)
+      .isEqualTo(TracingConfiguration.AGGREGATE_INTERVAL_MS_DEFAULT);
+    tracing.close();
+    builder.spanHandler.close();
+  }
+
+  @Test void shouldCreateReporterEagerly() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(SENDER_TYPE_CONFIG, TracingBuilder.SenderBuilder.SenderType.HTTP.name());
+    map.put(REPORTER_LAZY_ENABLED_CONFIG, "false");
+    TracingBuilder builder = new TracingBuilder(new TracingConfiguration(map));
+    // When
+    Tracing tracing = builder.build();
+    // Then
+    assertThat(builder.spanHandler.isInitialized()).isTrue();
+    assertThat(builder.spanHandler.sender).isInstanceOf(OkHttpSender.class);
+    tracing.close();
+    builder.spanHandler.close();
+  }
+
+  @Test void shouldBuildDefaultReporter() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    TracingConfiguration config = new TracingConfiguration(map);
+    // When
+    TracingBuilder.ReporterBuilder reporter = new TracingBuilder.ReporterBuilder(config);
+    // Then
+    assertThat(reporter.queuedMaxSpans).isEqualTo(REPORTER_QUEUED_MAX_SPANS_DEFAULT);
+    assertThat(reporter.messageTimeoutMs).isEqualTo(REPORTER_MESSAGE_TIMEOUT_MS_DEFAULT);
+    assertThat(reporter.queuedMaxBytes).isZero();
+    assertThat(reporter.messageMaxBytes).isZero();
+  }
+
+  @Test void shouldBuildReporter() {
+    // Given
+    Map<String, Object> map = new HashMap<>();
+    map.put(REPORTER_QUEUED_MAX_SPANS_CONFIG, "500");
+    map.put(REPORTER_QUEUED_MAX_BYTES_CONFIG, 1_000_000);
+    map.put(REPORTER_MESSAGE_MAX_BYTES_CONFIG, "100000");
+    map.put(REPORTER_MESSAGE_TIMEOUT_MS_CONFIG, "200");
+    TracingConfiguration config = new TracingConfiguration(map);
+    // When
+    TracingBuilder.ReporterBuilder reporter = new TracingBuilder.ReporterBuilder(config);
+    // Then
+    assertThat(reporter.queuedMaxSpans).isEqualTo(500);
+    assertThat(reporter.queuedMaxBytes).isEqualTo(1_000_000);
+    assertThat(reporter.messageMaxBytes).isEqualTo(100_000);
+    assertThat(reporter.messageTimeoutMs).isEqualTo(200);
+  }
+
+  @Test void shouldCountSpansDroppedWhenQueueIsFull() {
+    // Given
+    Map<String, String> map = new HashMap<>();
+    map.put(REPORTER_QUEUED_MAX_SPANS_CONFIG, "1");
+    map.put(REPORTER_MESSAGE_TIMEOUT_MS_CONFIG, "0");
+    TracingConfiguration config = new TracingConfiguration(map);
+    ReporterCounters counters = new ReporterCounters();
+    AsyncZipkinSpanHandler handler =
+      new TracingBuilder.ReporterBuilder(config).build(new FakeSender(), counters);
+    Tracing tracing = Tracing.newBuilder().addSpanHandler(handler).build();
+    // When
+    tracing.tracer().nextSpan().start().finish();
+    tracing.tracer().nextSpan().start().finish();
+    // Then
+    assertThat(counters.spans()).isEqualTo(2);
+    assertThat(counters.spansDropped()).isEqualTo(1);
+    // When
+    handler.flush();
+    // Then
+    assertThat(counters.spansSent()).isEqualTo(1);
+    assertThat(counters.messages()).isEqualTo(1);
+    assertThat(counters.queuedSpans()).isZero();
+    tracing.close();
+    handler.close();
+  }
 }
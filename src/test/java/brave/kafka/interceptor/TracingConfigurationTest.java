@@ -20,6 +20,7 @@ import java.util.Map;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.entry;
 
 class TracingConfigurationTest {
 
@@ -61,6 +62,16 @@ class TracingConfigurationTest {
     assertThat(config.getStringOrDefault("k", "v1")).isEqualTo("v");
   }
 
+  @Test void shouldGetStringOfOtherTypes() {
+    // Given
+    Map<String, Object> configs = new HashMap<>();
+    configs.put("k", true);
+    // When
+    TracingConfiguration config = new TracingConfiguration(configs);
+    // Then
+    assertThat(config.getStringOrDefault("k", "false")).isEqualTo("true");
+  }
+
   @Test void shouldGetStringListWhenValueExists() {
     // Given
     Map<String, List<String>> configs = new HashMap<>();
@@ -113,4 +124,15 @@ class TracingConfigurationTest {
     // Then
     assertThat(config.getKafkaOverrides()).containsEntry("acks", "all");
   }
+
+  @Test void shouldGetTags() {
+    // Given
+    Map<String, Object> configs = new HashMap<>();
+    configs.put(TracingConfiguration.TAGS_PREFIX + "env", "prod");
+    configs.put("k", "v");
+    // When
+    TracingConfiguration config = new TracingConfiguration(configs);
+    // Then
+    assertThat(config.getTags()).containsOnly(entry("env", "prod"));
+  }
 }
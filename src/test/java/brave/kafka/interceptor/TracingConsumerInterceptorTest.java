@@ -13,14 +13,22 @@
  */
 package brave.kafka.interceptor;
 
+import brave.Span;
+import brave.Tracer;
+import brave.Tracing;
+import brave.propagation.TraceContext;
+import brave.sampler.Sampler;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import org.apache.kafka.clients.consumer.ConsumerRecord;
 import org.apache.kafka.clients.consumer.ConsumerRecords;
+import org.apache.kafka.clients.consumer.OffsetAndMetadata;
 import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.record.TimestampType;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
@@ -65,4 +73,493 @@ class TracingConsumerInterceptorTest extends BaseTracingTest {
     // Then
     assertThat(spans).hasSize(3);
   }
+
+  @Test void shouldCreateSpanPerPartitionOnConsume() {
+    // Given
+    brave.Span upstream = tracing.tracer().newTrace();
+    ConsumerRecord<String, String> record = new ConsumerRecord<>("topic", 0, 0L, "k", "v");
+    tracing.propagation().injector(BraveHeaders.HEADER_SETTER)
+      .inject(upstream.context(), record.headers());
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> topicPartitionAndRecords =
+      new LinkedHashMap<>();
+    topicPartitionAndRecords.put(new TopicPartition("topic", 0), Arrays.asList(record,
+      new ConsumerRecord<>("topic", 0, 1L, "k", "v")));
+    topicPartitionAndRecords.put(new TopicPartition("topic", 1),
+      Collections.singletonList(new ConsumerRecord<>("topic", 1, 0L, "k", "v")));
+    ConsumerRecords<String, String> records = new ConsumerRecords<>(topicPartitionAndRecords);
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "PARTITION");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onConsume(records);
+    // Then
+    assertThat(spans).hasSize(2);
+    assertThat(spans.get(0).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_PARTITION, "0")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_RECORD_COUNT, "2")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_OFFSET_FIRST, "0")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_OFFSET_LAST, "1")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_LINKS,
+        upstream.context().traceIdString() + "-" + upstream.context().spanIdString());
+    assertThat(spans.get(1).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_PARTITION, "1")
+      .doesNotContainKey(KafkaInterceptorTagKey.KAFKA_LINKS);
+    TraceContext injected = tracing.propagation()
+      .extractor(BraveHeaders.HEADER_GETTER).extract(record.headers()).context();
+    assertThat(injected.spanIdString()).isEqualTo(spans.get(0).id());
+  }
+
+  @Test void shouldCreateSpanPerPollOnConsume() {
+    // Given
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> topicPartitionAndRecords =
+      new LinkedHashMap<>();
+    topicPartitionAndRecords.put(new TopicPartition("topic", 0),
+      Collections.singletonList(new ConsumerRecord<>("topic", 0, 0L, "k", "v")));
+    topicPartitionAndRecords.put(new TopicPartition("other", 0),
+      Collections.singletonList(new ConsumerRecord<>("other", 0, 0L, "k", "v")));
+    ConsumerRecords<String, String> records = new ConsumerRecords<>(topicPartitionAndRecords);
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "POLL");
+    map.put(TracingConfiguration.METRICS_ENABLED_CONFIG, "true");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onConsume(records);
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(spans.get(0).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_TOPIC, "topic,other")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_RECORD_COUNT, "2")
+      .doesNotContainKey(KafkaInterceptorTagKey.KAFKA_OFFSET_FIRST);
+    assertThat(InterceptorMetricsTest.value(interceptor.metrics, "records-traced-total"))
+      .isEqualTo(2.0);
+    assertThat(InterceptorMetricsTest.value(interceptor.metrics, "spans-created-total"))
+      .isEqualTo(1.0);
+    interceptor.metrics.close();
+  }
+
+  @Test void shouldTagLatencyOnConsume() {
+    // Given
+    long now = System.currentTimeMillis();
+    ConsumerRecord<String, String> traced = consumerRecord(0L, now - 1000L);
+    tracing.propagation().injector(BraveHeaders.HEADER_SETTER)
+      .inject(tracing.tracer().newTrace().context(), traced.headers());
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> topicPartitionAndRecords =
+      new LinkedHashMap<>();
+    topicPartitionAndRecords.put(new TopicPartition("topic", 0),
+      Arrays.asList(traced, consumerRecord(1L, now - 2000L), consumerRecord(2L, now - 3000L)));
+    ConsumerRecords<String, String> records = new ConsumerRecords<>(topicPartitionAndRecords);
+    map.put(TracingConfiguration.CONSUMER_LATENCY_ENABLED_CONFIG, "true");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onConsume(records);
+    // Then
+    assertThat(spans).hasSize(2);
+    assertThat(Long.parseLong(spans.get(0).tag(KafkaInterceptorTagKey.KAFKA_LATENCY)))
+      .isBetween(1000L, 1999L);
+    assertThat(Long.parseLong(spans.get(1).tag(KafkaInterceptorTagKey.KAFKA_LATENCY_MIN)))
+      .isBetween(2000L, 2999L);
+    assertThat(Long.parseLong(spans.get(1).tag(KafkaInterceptorTagKey.KAFKA_LATENCY_MAX)))
+      .isBetween(3000L, 3999L);
+    assertThat(spans.get(1).tags()).containsKey(KafkaInterceptorTagKey.KAFKA_LATENCY_P99);
+    LatencyHistogram histogram =
+      ConsumerLatencies.get("client-1").get(new TopicPartition("topic", 0));
+    assertThat(histogram.count()).isEqualTo(3L);
+    // When
+    interceptor.close();
+    // Then
+    assertThat(ConsumerLatencies.get("client-1")).isEmpty();
+  }
+
+  @Test void shouldKeepLatenciesPerConsumer() {
+    // Given
+    map.put(TracingConfiguration.CONSUMER_LATENCY_ENABLED_CONFIG, "true");
+    TracingConsumerInterceptor<String, String> first = new TracingConsumerInterceptor<>();
+    first.configure(map);
+    first.tracing = tracing;
+    TracingConsumerInterceptor<String, String> second = new TracingConsumerInterceptor<>();
+    second.configure(new LinkedHashMap<>(map));
+    second.tracing = tracing;
+    TopicPartition partition = new TopicPartition("topic", 0);
+    ConsumerRecords<String, String> records = new ConsumerRecords<>(Collections.singletonMap(
+      partition, Collections.singletonList(consumerRecord(0L, System.currentTimeMillis()))));
+    // When consumers sharing a client id consume
+    first.onConsume(records);
+    second.onConsume(records);
+    second.close();
+    // Then the first one published is not closed by the other
+    assertThat(ConsumerLatencies.get("client-1").get(partition).count()).isEqualTo(1L);
+    assertThat(second.latencies.partitions.get(partition).count()).isEqualTo(1L);
+    first.close();
+  }
+
+  @Test void shouldNotTouchRecordsOfExcludedTopics() {
+    // Given
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> topicPartitionAndRecords =
+      new LinkedHashMap<>();
+    ConsumerRecord<String, String> excluded =
+      new ConsumerRecord<>("app-changelog", 0, 0L, "k", "v");
+    topicPartitionAndRecords.put(new TopicPartition("app-changelog", 0),
+      Collections.singletonList(excluded));
+    topicPartitionAndRecords.put(new TopicPartition("topic", 0),
+      Collections.singletonList(new ConsumerRecord<>("topic", 0, 0L, "k", "v")));
+    ConsumerRecords<String, String> records = new ConsumerRecords<>(topicPartitionAndRecords);
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "POLL");
+    map.put(TracingConfiguration.TOPICS_EXCLUDE_CONFIG, "regex:.*-changelog");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onConsume(records);
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(spans.get(0).tags()).containsEntry(KafkaInterceptorTagKey.KAFKA_TOPIC, "topic");
+    assertThat(excluded.headers().toArray()).isEmpty();
+  }
+
+  @Test void shouldNotTouchRecordsOfInternalTopicsWhenCollapsed() {
+    // Given
+    brave.Span upstream = tracing.tracer().newTrace();
+    ConsumerRecord<String, String> record =
+      new ConsumerRecord<>("app-store-repartition", 0, 0L, "k", "v");
+    tracing.propagation().injector(BraveHeaders.HEADER_SETTER)
+      .inject(upstream.context(), record.headers());
+    ConsumerRecords<String, String> records = new ConsumerRecords<>(Collections.singletonMap(
+      new TopicPartition("app-store-repartition", 0), Collections.singletonList(record)));
+    map.put(TracingConfiguration.STREAMS_MODE_CONFIG, "COLLAPSE");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onConsume(records);
+    // Then
+    assertThat(spans).isEmpty();
+    assertThat(tracing.propagation().extractor(BraveHeaders.HEADER_GETTER)
+      .extract(record.headers()).context()).isEqualTo(upstream.context());
+  }
+
+  @Test void shouldTagSizesSummedPerPartition() {
+    // Given
+    ConsumerRecord<String, String> record = new ConsumerRecord<>("topic", 0, 0L, 0L,
+      TimestampType.CREATE_TIME, 0L, 1, 10, "k", "v");
+    record.headers().add("h", new byte[2]);
+    ConsumerRecords<String, String> records = new ConsumerRecords<>(Collections.singletonMap(
+      new TopicPartition("topic", 0), Arrays.asList(record, new ConsumerRecord<>("topic", 0, 1L,
+        0L, TimestampType.CREATE_TIME, 0L, 2, 20, "k", "v"))));
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "PARTITION");
+    map.put(TracingConfiguration.SIZE_TAGS_ENABLED_CONFIG, "true");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onConsume(records);
+    // Then
+    assertThat(spans.get(0).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_KEY_SIZE, "3")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_VALUE_SIZE, "30")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_HEADERS_SIZE, "3");
+  }
+
+  @Test void shouldFinishPartitionSpansOnCommit() {
+    // Given
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> topicPartitionAndRecords =
+      new LinkedHashMap<>();
+    topicPartitionAndRecords.put(new TopicPartition("topic", 0), Arrays.asList(
+      new ConsumerRecord<>("topic", 0, 4L, "k", "v"),
+      new ConsumerRecord<>("topic", 0, 5L, "k", "v")));
+    topicPartitionAndRecords.put(new TopicPartition("topic", 1),
+      Collections.singletonList(new ConsumerRecord<>("topic", 1, 7L, "k", "v")));
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "PARTITION");
+    map.put(TracingConfiguration.CONSUMER_SPAN_FINISH_CONFIG, "COMMIT");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    interceptor.onConsume(new ConsumerRecords<>(topicPartitionAndRecords));
+    assertThat(spans).isEmpty();
+    // When
+    interceptor.onCommit(Collections.singletonMap(new TopicPartition("topic", 0),
+      new OffsetAndMetadata(5L)));
+    // Then
+    assertThat(spans).isEmpty();
+    // When
+    interceptor.onCommit(Collections.singletonMap(new TopicPartition("topic", 0),
+      new OffsetAndMetadata(6L)));
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(spans.get(0).tags()).containsEntry(KafkaInterceptorTagKey.KAFKA_PARTITION, "0");
+    // When
+    interceptor.close();
+    // Then
+    assertThat(spans).hasSize(2);
+  }
+
+  @Test void shouldFinishPollSpanWhenAllPartitionsAreCommitted() {
+    // Given
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> topicPartitionAndRecords =
+      new LinkedHashMap<>();
+    topicPartitionAndRecords.put(new TopicPartition("topic", 0),
+      Collections.singletonList(new ConsumerRecord<>("topic", 0, 0L, "k", "v")));
+    topicPartitionAndRecords.put(new TopicPartition("other", 0),
+      Collections.singletonList(new ConsumerRecord<>("other", 0, 0L, "k", "v")));
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "POLL");
+    map.put(TracingConfiguration.CONSUMER_SPAN_FINISH_CONFIG, "COMMIT");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    interceptor.onConsume(new ConsumerRecords<>(topicPartitionAndRecords));
+    // When
+    interceptor.onCommit(Collections.singletonMap(new TopicPartition("topic", 0),
+      new OffsetAndMetadata(1L)));
+    // Then
+    assertThat(spans).isEmpty();
+    // When
+    interceptor.onCommit(Collections.singletonMap(new TopicPartition("other", 0),
+      new OffsetAndMetadata(1L)));
+    // Then
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test void shouldCreateCommitSpanTaggedWithOffsets() {
+    // Given
+    map.put(TracingConfiguration.CONSUMER_COMMIT_SPANS_ENABLED_CONFIG, "true");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    Map<TopicPartition, OffsetAndMetadata> offsets = new LinkedHashMap<>();
+    offsets.put(new TopicPartition("topic", 0), new OffsetAndMetadata(5L));
+    offsets.put(new TopicPartition("topic", 1), new OffsetAndMetadata(7L));
+    // When
+    interceptor.onCommit(offsets);
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(spans.get(0).name()).isEqualTo(TracingConsumerInterceptor.COMMIT_SPAN_NAME);
+    assertThat(spans.get(0).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_COMMIT_PARTITIONS, "2")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_COMMIT_OFFSETS, "topic-0:5,topic-1:7");
+  }
+
+  @Test void shouldFinishSpansOfPartitionsNoLongerCommitted() throws InterruptedException {
+    // Given
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> topicPartitionAndRecords =
+      new LinkedHashMap<>();
+    topicPartitionAndRecords.put(new TopicPartition("topic", 0),
+      Collections.singletonList(new ConsumerRecord<>("topic", 0, 0L, "k", "v")));
+    topicPartitionAndRecords.put(new TopicPartition("topic", 1),
+      Collections.singletonList(new ConsumerRecord<>("topic", 1, 0L, "k", "v")));
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "PARTITION");
+    map.put(TracingConfiguration.CONSUMER_SPAN_FINISH_CONFIG, "COMMIT");
+    map.put(TracingConfiguration.CONSUMER_PARTITION_IDLE_MS_CONFIG, "1");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    interceptor.onConsume(new ConsumerRecords<>(topicPartitionAndRecords));
+    Thread.sleep(5L);
+    // When partition 1 was revoked, and only partition 0 is committed
+    interceptor.onCommit(Collections.singletonMap(new TopicPartition("topic", 0),
+      new OffsetAndMetadata(1L)));
+    // Then
+    assertThat(spans).hasSize(2);
+    assertThat(interceptor.commitSpans.size(new TopicPartition("topic", 1))).isZero();
+  }
+
+  @Test void shouldFinishSpansOfPartitionsNoLongerConsumedWithoutCommit()
+    throws InterruptedException {
+    // Given
+    TopicPartition partition0 = new TopicPartition("topic", 0);
+    TopicPartition partition1 = new TopicPartition("topic", 1);
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> topicPartitionAndRecords =
+      new LinkedHashMap<>();
+    topicPartitionAndRecords.put(partition0,
+      Collections.singletonList(new ConsumerRecord<>("topic", 0, 0L, "k", "v")));
+    topicPartitionAndRecords.put(partition1,
+      Collections.singletonList(new ConsumerRecord<>("topic", 1, 0L, "k", "v")));
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "PARTITION");
+    map.put(TracingConfiguration.CONSUMER_SPAN_FINISH_CONFIG, "COMMIT");
+    map.put(TracingConfiguration.CONSUMER_PARTITION_IDLE_MS_CONFIG, "1");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    interceptor.onConsume(new ConsumerRecords<>(topicPartitionAndRecords));
+    Thread.sleep(5L);
+    // When partition 1 was revoked, and only partition 0 is consumed, never committed
+    interceptor.onConsume(new ConsumerRecords<>(Collections.singletonMap(partition0,
+      Collections.singletonList(new ConsumerRecord<>("topic", 0, 1L, "k", "v")))));
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(interceptor.commitSpans.size(partition1)).isZero();
+    assertThat(interceptor.commitSpans.size(partition0)).isEqualTo(2);
+  }
+
+  @Test void shouldForgetTopicsNoLongerConsumed() throws InterruptedException {
+    // Given
+    map.put(TracingConfiguration.CONSUMER_PARTITION_IDLE_MS_CONFIG, "1");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    interceptor.onConsume(new ConsumerRecords<>(Collections.singletonMap(
+      new TopicPartition("old", 0),
+      Collections.singletonList(new ConsumerRecord<>("old", 0, 0L, "k", "v")))));
+    Thread.sleep(5L);
+    // When only another topic is consumed
+    interceptor.onConsume(new ConsumerRecords<>(Collections.singletonMap(
+      new TopicPartition("topic", 0),
+      Collections.singletonList(new ConsumerRecord<>("topic", 0, 0L, "k", "v")))));
+    // Then
+    assertThat(interceptor.topicBatches).containsOnlyKeys("topic");
+  }
+
+  @Test void shouldSampleByRecordKey() {
+    // Given
+    ConsumerRecord<String, String> keyed = new ConsumerRecord<>("topic", 0, 0L, "k", "v");
+    ConsumerRecord<String, String> unkeyed = new ConsumerRecord<>("topic", 0, 1L, null, "v");
+    Map<TopicPartition, List<ConsumerRecord<String, String>>> topicPartitionAndRecords =
+      Collections.singletonMap(new TopicPartition("topic", 0), Arrays.asList(keyed, unkeyed));
+    map.put(TracingConfiguration.SAMPLER_KEY_CONFIG, "RECORD_KEY");
+    map.put(TracingConfiguration.SAMPLER_KEY_RATE_CONFIG, "0.0");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onConsume(new ConsumerRecords<>(topicPartitionAndRecords));
+    // Then
+    assertThat(keyed.headers().toArray()).isEmpty();
+    assertThat(unkeyed.headers().toArray()).isNotEmpty();
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test void shouldNotTouchRecordsNotSampledUpstreamInBatchModes() {
+    for (String spanMode : new String[] {"PARTITION", "POLL"}) {
+      // Given
+      ConsumerRecord<String, String> notSampled = new ConsumerRecord<>("topic", 0, 0L, "k", "v");
+      notSampled.headers().add("b3", "0".getBytes(KafkaInterceptorPropagation.UTF_8));
+      ConsumerRecord<String, String> record = new ConsumerRecord<>("topic", 0, 1L, "k", "v");
+      map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, spanMode);
+      TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+      interceptor.configure(map);
+      interceptor.tracing = tracing;
+      // When
+      interceptor.onConsume(new ConsumerRecords<>(Collections.singletonMap(
+        new TopicPartition("topic", 0), Arrays.asList(notSampled, record))));
+      // Then
+      assertThat(notSampled.headers().toArray()).hasSize(1);
+      assertThat(notSampled.headers().lastHeader("b3").value())
+        .isEqualTo("0".getBytes(KafkaInterceptorPropagation.UTF_8));
+      assertThat(record.headers().toArray()).isNotEmpty();
+      interceptor.close();
+    }
+  }
+
+  @Test void shouldDropBatchSpansWithoutRecordsSampled() {
+    for (String spanMode : new String[] {"PARTITION", "POLL"}) {
+      // Given
+      ConsumerRecord<String, String> notSampled = new ConsumerRecord<>("topic", 0, 0L, "k", "v");
+      notSampled.headers().add("b3", "0".getBytes(KafkaInterceptorPropagation.UTF_8));
+      map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, spanMode);
+      TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+      interceptor.configure(map);
+      interceptor.tracing = tracing;
+      // When
+      interceptor.onConsume(new ConsumerRecords<>(Collections.singletonMap(
+        new TopicPartition("topic", 0), Collections.singletonList(notSampled))));
+      // Then
+      assertThat(spans).isEmpty();
+      interceptor.close();
+    }
+  }
+
+  @Test void shouldSamplePollSpansByTopic() {
+    // Given
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "POLL");
+    map.put(TracingConfiguration.SAMPLER_TOPIC_PREFIX + "topic", "0.0");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    ConsumerRecord<String, String> record = new ConsumerRecord<>("topic", 0, 0L, "k", "v");
+    // When
+    interceptor.onConsume(new ConsumerRecords<>(Collections.singletonMap(
+      new TopicPartition("topic", 0), Collections.singletonList(record))));
+    // Then
+    assertThat(spans).isEmpty();
+    assertThat(record.headers().toArray()).isEmpty();
+    interceptor.close();
+  }
+
+  @Test void shouldStartNewTraceForBatchSpans() {
+    // Given
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "POLL");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    ConsumerRecord<String, String> record = new ConsumerRecord<>("topic", 0, 0L, "k", "v");
+    Span application = tracing.tracer().nextSpan().start();
+    // When polling under the application's span
+    try (Tracer.SpanInScope ws = tracing.tracer().withSpanInScope(application)) {
+      interceptor.onConsume(new ConsumerRecords<>(Collections.singletonMap(
+        new TopicPartition("topic", 0), Collections.singletonList(record))));
+    }
+    application.finish();
+    // Then
+    assertThat(spans).hasSize(2);
+    assertThat(spans.get(0).parentId()).isNull();
+    assertThat(spans.get(0).traceId()).isNotEqualTo(spans.get(1).traceId());
+  }
+
+  @Test void shouldNotInjectUnsampledRecordSpan() {
+    // Given a context deferring the sampling decision
+    ConsumerRecord<String, String> record = new ConsumerRecord<>("topic", 0, 0L, "k", "v");
+    record.headers().add("b3", "48485a3953bb6124-a2fb4a1d1a96d312".getBytes(
+      KafkaInterceptorPropagation.UTF_8));
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = Tracing.newBuilder().sampler(Sampler.NEVER_SAMPLE).build();
+    // When
+    interceptor.onConsume(new ConsumerRecords<>(Collections.singletonMap(
+      new TopicPartition("topic", 0), Collections.singletonList(record))));
+    // Then
+    assertThat(record.headers().toArray()).hasSize(1);
+    interceptor.tracing.close();
+  }
+
+  @Test void shouldNotTouchRecordsNotSampledUpstream() {
+    // Given
+    ConsumerRecord<String, String> record = new ConsumerRecord<>("topic", 0, 0L, "k", "v");
+    record.headers().add("b3", "0".getBytes(KafkaInterceptorPropagation.UTF_8));
+    ConsumerRecords<String, String> records = new ConsumerRecords<>(Collections.singletonMap(
+      new TopicPartition("topic", 0), Collections.singletonList(record)));
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onConsume(records);
+    // Then
+    assertThat(spans).isEmpty();
+    assertThat(record.headers().toArray()).hasSize(1);
+  }
+
+  @Test void shouldNotInjectBatchSpanNotSampled() {
+    // Given
+    Tracing unsampled = Tracing.newBuilder().addSpanHandler(spans)
+      .sampler(Sampler.NEVER_SAMPLE).build();
+    ConsumerRecord<String, String> record = new ConsumerRecord<>("topic", 0, 0L, "k", "v");
+    ConsumerRecords<String, String> records = new ConsumerRecords<>(Collections.singletonMap(
+      new TopicPartition("topic", 0), Collections.singletonList(record)));
+    map.put(TracingConfiguration.CONSUMER_SPAN_MODE_CONFIG, "PARTITION");
+    TracingConsumerInterceptor<String, String> interceptor = new TracingConsumerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = unsampled;
+    // When
+    interceptor.onConsume(records);
+    // Then
+    assertThat(spans).isEmpty();
+    assertThat(record.headers().toArray()).isEmpty();
+    unsampled.close();
+  }
+
+  static ConsumerRecord<String, String> consumerRecord(long offset, long timestamp) {
+    return new ConsumerRecord<>("topic", 0, offset, timestamp, TimestampType.CREATE_TIME, 0L, 0, 0,
+      "k", "v");
+  }
 }
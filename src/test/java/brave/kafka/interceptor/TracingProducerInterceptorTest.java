@@ -13,10 +13,15 @@
  */
 package brave.kafka.interceptor;
 
+import brave.handler.MutableSpan;
 import org.apache.kafka.clients.producer.ProducerRecord;
+import org.apache.kafka.clients.producer.RecordMetadata;
+import org.apache.kafka.common.TopicPartition;
+import org.apache.kafka.common.errors.TimeoutException;
 import org.junit.jupiter.api.Test;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.assertj.core.api.Assertions.assertThatThrownBy;
 
 public class TracingProducerInterceptorTest extends BaseTracingTest {
 
@@ -29,6 +34,18 @@ public class TracingProducerInterceptorTest extends BaseTracingTest {
     assertThat(tracedRecord).isEqualTo(record);
   }
 
+  @Test void shouldFailToConfigureWithInvalidEncodingWhenReporterIsLazy() {
+    // Given
+    map.put(TracingConfiguration.SENDER_TYPE_CONFIG, "HTTP");
+    map.put(TracingConfiguration.REPORTER_LAZY_ENABLED_CONFIG, "true");
+    map.put(TracingConfiguration.ENCODING_CONFIG, "THRIFT");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    // When / Then
+    assertThatThrownBy(() -> interceptor.configure(map))
+      .isInstanceOf(IllegalArgumentException.class)
+      .hasMessageContaining("THRIFT");
+  }
+
   @Test void shouldCreateSpanOnSend() {
     // Given
     TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
@@ -46,7 +63,7 @@ public class TracingProducerInterceptorTest extends BaseTracingTest {
     interceptor.configure(map);
     interceptor.tracing = tracing;
     brave.Span span = tracing.tracer().newTrace();
-    tracing.propagation().injector(KafkaInterceptorPropagation.HEADER_SETTER)
+    tracing.propagation().injector(BraveHeaders.HEADER_SETTER)
       .inject(span.context(), record.headers());
     // When
     interceptor.onSend(record);
@@ -54,4 +71,272 @@ public class TracingProducerInterceptorTest extends BaseTracingTest {
     assertThat(spans).hasSize(1);
     assertThat(spans.get(0).parentId()).isEqualTo(span.context().spanIdString());
   }
+
+  @Test void shouldSampleByRecordKey() {
+    // Given
+    map.put(TracingConfiguration.SAMPLER_KEY_CONFIG, "RECORD_KEY");
+    map.put(TracingConfiguration.SAMPLER_KEY_RATE_CONFIG, "0.0");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(new ProducerRecord<>("topic", "key", "value"));
+    // Then
+    assertThat(spans).isEmpty();
+    // When records without key defer to the tracing sampler
+    interceptor.onSend(record);
+    // Then
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test void shouldTagKeyByPolicy() {
+    // Given
+    map.put(TracingConfiguration.PRODUCER_KEY_TAG_CONFIG, "TRUNCATED");
+    map.put(TracingConfiguration.PRODUCER_KEY_TAG_MAX_LENGTH_CONFIG, "5");
+    TracingProducerInterceptor<Object, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(new ProducerRecord<>("topic", "order-42", "value"));
+    interceptor.onSend(new ProducerRecord<>("topic", new byte[] {1, 2, 3}, "value"));
+    // Then
+    assertThat(spans.get(0).tags()).containsEntry(KafkaInterceptorTagKey.KAFKA_KEY, "order");
+    assertThat(spans.get(1).tags()).containsEntry(KafkaInterceptorTagKey.KAFKA_KEY, "0102");
+  }
+
+  @Test void shouldTagOnlyStringKeysByDefault() {
+    // Given
+    TracingProducerInterceptor<Object, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(new ProducerRecord<>("topic", "order-42", "value"));
+    interceptor.onSend(new ProducerRecord<>("topic", new byte[] {1, 2, 3}, "value"));
+    // Then
+    assertThat(spans.get(0).tags()).containsEntry(KafkaInterceptorTagKey.KAFKA_KEY, "order-42");
+    assertThat(spans.get(1).tags()).doesNotContainKey(KafkaInterceptorTagKey.KAFKA_KEY);
+  }
+
+  @Test void shouldNotTagKeyWhenOff() {
+    // Given
+    map.put(TracingConfiguration.PRODUCER_KEY_TAG_CONFIG, "OFF");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(new ProducerRecord<>("topic", "key", "value"));
+    // Then
+    assertThat(spans.get(0).tags()).doesNotContainKey(KafkaInterceptorTagKey.KAFKA_KEY);
+  }
+
+  @Test void shouldTagSpanWithStaticTags() {
+    // Given
+    map.put(TracingConfiguration.TAGS_PREFIX + "cluster", "eu-1");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(record);
+    // Then
+    assertThat(spans.get(0).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_CLIENT_ID, "client-1")
+      .containsEntry("cluster", "eu-1");
+  }
+
+  @Test void shouldFinishSpanOnAcknowledgement() {
+    // Given
+    map.put(TracingConfiguration.PRODUCER_SPAN_FINISH_CONFIG, "ACK");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    interceptor.onSend(new ProducerRecord<>("topic", 1, "key", "value"));
+    assertThat(spans).isEmpty();
+    // When
+    interceptor.onAcknowledgement(
+      new RecordMetadata(new TopicPartition("topic", 1), 0L, 42L, 0L, 0L, 0, 0), null);
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(spans.get(0).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_PARTITION, "1")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_OFFSET, "42");
+  }
+
+  @Test void shouldMatchAcknowledgementsPerPartition() {
+    // Given
+    map.put(TracingConfiguration.PRODUCER_SPAN_FINISH_CONFIG, "ACK");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    interceptor.onSend(new ProducerRecord<>("topic", 0, "key-0", "value"));
+    interceptor.onSend(new ProducerRecord<>("topic", 1, "key-1", "value"));
+    // When partition 1 is acknowledged first
+    interceptor.onAcknowledgement(
+      new RecordMetadata(new TopicPartition("topic", 1), 0L, 7L, 0L, 0L, 0, 0), null);
+    interceptor.onAcknowledgement(
+      new RecordMetadata(new TopicPartition("topic", 0), 0L, 3L, 0L, 0L, 0, 0), null);
+    // Then
+    assertThat(spans.get(0).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_KEY, "key-1")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_PARTITION, "1")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_OFFSET, "7");
+    assertThat(spans.get(1).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_KEY, "key-0")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_PARTITION, "0")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_OFFSET, "3");
+  }
+
+  @Test void shouldFinishSpanOnSendOfRecordsWithoutPartition() {
+    // Given
+    map.put(TracingConfiguration.PRODUCER_SPAN_FINISH_CONFIG, "ACK");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(record);
+    // Then
+    assertThat(spans).hasSize(1);
+    // When the acknowledgement may be the one of another record
+    interceptor.onSend(new ProducerRecord<>(record.topic(), 1, "key", "value"));
+    interceptor.onAcknowledgement(
+      new RecordMetadata(new TopicPartition(record.topic(), 1), 0L, 42L, 0L, 0L, 0, 0), null);
+    // Then
+    assertThat(spans).hasSize(2);
+    assertThat(spans).extracting(MutableSpan::tags)
+      .allSatisfy(tags -> assertThat(tags).doesNotContainKey(KafkaInterceptorTagKey.KAFKA_OFFSET));
+  }
+
+  @Test void shouldTagErrorOnAcknowledgement() {
+    // Given
+    map.put(TracingConfiguration.PRODUCER_SPAN_FINISH_CONFIG, "ACK");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    interceptor.onSend(new ProducerRecord<>("topic", 1, "key", "value"));
+    // When
+    interceptor.onAcknowledgement(
+      new RecordMetadata(new TopicPartition("topic", 1), -1L, -1L, -1L, -1L, -1, -1),
+      new TimeoutException("expired"));
+    // Then
+    assertThat(spans.get(0).error()).isInstanceOf(TimeoutException.class);
+    assertThat(spans.get(0).tags()).doesNotContainKey(KafkaInterceptorTagKey.KAFKA_OFFSET);
+  }
+
+  @Test void shouldSampleNewTracesByTopic() {
+    // Given
+    map.put(TracingConfiguration.SAMPLER_TOPIC_PREFIX + "top*", "0.0");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(record);
+    interceptor.onSend(new ProducerRecord<>("other", "value"));
+    // Then
+    assertThat(spans).hasSize(1);
+    assertThat(spans.get(0).tags()).containsEntry(KafkaInterceptorTagKey.KAFKA_TOPIC, "other");
+    interceptor.close();
+  }
+
+  @Test void shouldInjectConfiguredFormat() {
+    // Given
+    map.put(TracingConfiguration.PROPAGATION_FORMAT_CONFIG, "W3C");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(record);
+    // Then
+    assertThat(record.headers().toArray()).hasSize(1);
+    assertThat(record.headers().lastHeader("traceparent")).isNotNull();
+    interceptor.close();
+  }
+
+  @Test void shouldRecordMetrics() {
+    // Given
+    map.put(TracingConfiguration.METRICS_ENABLED_CONFIG, "true");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    record.headers()
+      .add("X-B3-TraceId", "not-a-trace-id".getBytes(KafkaInterceptorPropagation.UTF_8));
+    // When
+    interceptor.onSend(record);
+    // Then
+    assertThat(InterceptorMetricsTest.value(interceptor.metrics, "records-traced-total"))
+      .isEqualTo(1.0);
+    assertThat(InterceptorMetricsTest.value(interceptor.metrics, "spans-created-total"))
+      .isEqualTo(1.0);
+    assertThat(interceptor.metrics.extractFailures.sum()).isEqualTo(1L);
+    assertThat(interceptor.metrics.calls.sum()).isEqualTo(1L);
+    interceptor.close();
+  }
+
+  @Test void shouldNotRecordMetricsByDefault() {
+    // Given
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    // When
+    interceptor.configure(map);
+    // Then
+    assertThat(interceptor.metrics).isNull();
+    interceptor.close();
+  }
+
+  @Test void shouldNotTouchRecordsOfExcludedTopics() {
+    // Given
+    map.put(TracingConfiguration.TOPICS_EXCLUDE_CONFIG, "regex:top.*");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(record);
+    // Then
+    assertThat(spans).isEmpty();
+    assertThat(record.headers().toArray()).isEmpty();
+  }
+
+  @Test void shouldNotTouchRecordsOfInternalTopicsWhenSkipped() {
+    // Given
+    map.put(TracingConfiguration.STREAMS_MODE_CONFIG, "SKIP");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    brave.Span upstream = tracing.tracer().newTrace();
+    ProducerRecord<String, String> internal =
+      new ProducerRecord<>("app-store-repartition", "value");
+    tracing.propagation().injector(BraveHeaders.HEADER_SETTER)
+      .inject(upstream.context(), internal.headers());
+    // When
+    interceptor.onSend(internal);
+    // Then
+    assertThat(spans).isEmpty();
+    assertThat(tracing.propagation().extractor(BraveHeaders.HEADER_GETTER)
+      .extract(internal.headers()).context()).isEqualTo(upstream.context());
+  }
+
+  @Test void shouldCreateSpanForInternalTopicsWhenCollapsed() {
+    // Given
+    map.put(TracingConfiguration.STREAMS_MODE_CONFIG, "COLLAPSE");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(new ProducerRecord<>("app-store-changelog", "value"));
+    // Then
+    assertThat(spans).hasSize(1);
+  }
+
+  @Test void shouldTagEstimatedSizes() {
+    // Given
+    map.put(TracingConfiguration.SIZE_TAGS_ENABLED_CONFIG, "true");
+    TracingProducerInterceptor<String, String> interceptor = new TracingProducerInterceptor<>();
+    interceptor.configure(map);
+    interceptor.tracing = tracing;
+    // When
+    interceptor.onSend(record);
+    // Then
+    assertThat(spans.get(0).tags())
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_VALUE_SIZE, "5")
+      .containsEntry(KafkaInterceptorTagKey.KAFKA_HEADERS_SIZE,
+        String.valueOf(RecordSizes.headersSize(record.headers())))
+      .doesNotContainKey(KafkaInterceptorTagKey.KAFKA_KEY_SIZE);
+  }
 }
@@ -0,0 +1,101 @@
+/*
+ * Copyright 2018-2022 The OpenZipkin Authors
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package brave.kafka.interceptor;
+
+import brave.Tracing;
+import java.util.HashMap;
+import java.util.Map;
+import org.junit.jupiter.api.Test;
+
+import static brave.kafka.interceptor.TracingConfiguration.LOCAL_SERVICE_NAME_CONFIG;
+import static brave.kafka.interceptor.TracingConfiguration.REPORTER_MESSAGE_TIMEOUT_MS_CONFIG;
+import static org.assertj.core.api.Assertions.assertThat;
+
+class TracingRegistryTest {
+  TracingRegistry registry = new TracingRegistry();
+
+  @Test void shouldShareTracingWithSameConfig() {
+    // Given
+    Map<String, Object> map = new HashMap<>();
+    map.put(LOCAL_SERVICE_NAME_CONFIG, "svc");
+    map.put("client.id", "client-1");
+    Map<String, Object> other = new HashMap<>(map);
+    other.put("client.id", "client-2");
+    // When
+    Tracing tracing = registry.acquire(new TracingConfiguration(map));
+    Tracing otherTracing = registry.acquire(new TracingConfiguration(other));
+    // Then
+    assertThat(otherTracing).isSameAs(tracing);
+    assertThat(registry.size()).isEqualTo(1);
+    registry.release(tracing);
+    registry.release(otherTracing);
+  }
+
+  @Test void shouldNotShareTracingWithDifferentConfig() {
+    // Given
+    Map<String, Object> map = new HashMap<>();
+    map.put(LOCAL_SERVICE_NAME_CONFIG, "svc");
+    Map<String, Object> other = new HashMap<>();
+    other.put(LOCAL_SERVICE_NAME_CONFIG, "other-svc");
+    // When
+    Tracing tracing = registry.acquire(new TracingConfiguration(map));
+    Tracing otherTracing = registry.acquire(new TracingConfiguration(other));
+    // Then
+    assertThat(otherTracing).isNotSameAs(tracing);
+    assertThat(registry.size()).isEqualTo(2);
+    registry.release(tracing);
+    registry.release(otherTracing);
+  }
+
+  @Test void shouldCloseTracingWhenLastReferenceIsReleased() {
+    // Given
+    Map<String, Object> map = new HashMap<>();
+    Tracing tracing = registry.acquire(new TracingConfiguration(map));
+    registry.acquire(new TracingConfiguration(map));
+    // When
+    registry.release(tracing);
+    // Then
+    assertThat(registry.size()).isEqualTo(1);
+    // When
+    registry.release(tracing);
+    // Then
+    assertThat(registry.size()).isZero();
+    Tracing newTracing = registry.acquire(new TracingConfiguration(map));
+    assertThat(newTracing).isNotSameAs(tracing);
+    registry.release(newTracing);
+  }
+
+  @Test void shouldFlushAndCloseReporterWhenLastReferenceIsReleased() {
+    // Given
+    Map<String, Object> map = new HashMap<>();
+    map.put(REPORTER_MESSAGE_TIMEOUT_MS_CONFIG, "60000");
+    FakeSender fakeSender = new FakeSender();
+    TracingRegistry.Entry entry = new TracingRegistry.Entry(
+      new TracingBuilder(new TracingConfiguration(map)) {
+        @Override Tracing build() {
+          this.spanHandler = new LazySpanHandler(() -> fakeSender,
+            new ReporterBuilder(configuration), reporterCounters);
+          this.closeTimeoutMs = 1000;
+          return Tracing.newBuilder().addSpanHandler(spanHandler).build();
+        }
+      });
+    entry.tracing.tracer().nextSpan().start().finish();
+    // When
+    entry.close();
+    // Then
+    assertThat(fakeSender.messages).hasSize(1);
+    assertThat(fakeSender.closed).isTrue();
+    assertThat(entry.reporterCounters.spansLostOnClose()).isZero();
+  }
+}